@@ -0,0 +1,50 @@
+/*
+ * BatchStats accumulates statistics about the batches drained from the
+ * commandQueue by the CommandProcessor.  Large or maxed-out batches mean the
+ * processor is falling behind its producers; the number of coalesced
+ * housekeeping commands shows how many timer ticks piled up meanwhile.
+ * Only the CommandProcessor thread records; summary() may be called from it
+ * as well, so no synchronization is needed.
+ */
+
+package cw_generic;
+
+public class BatchStats {
+    private long batches;
+    private long commands;
+    private long coalesced;
+    private int maxBatch;
+    private int fullBatches;
+    private final int batchLimit;
+
+    public BatchStats(int batchLimit) {
+        this.batchLimit = batchLimit;
+    }
+
+    public void record(int size, int coalescedInBatch) {
+        batches++;
+        commands += size;
+        coalesced += coalescedInBatch;
+        if (size > maxBatch) {
+            maxBatch = size;
+        }
+        if (size >= batchLimit) {
+            fullBatches++;
+        }
+    }
+
+    // One line summary since the last reset.
+    public String summary() {
+        double avg = (batches == 0) ? 0 : (double) commands / batches;
+        return String.format("CommandProcessor: %d commands in %d batches (avg %.1f, max %d, %d full), %d housekeeping commands coalesced",
+                commands, batches, avg, maxBatch, fullBatches, coalesced);
+    }
+
+    public void reset() {
+        batches = 0;
+        commands = 0;
+        coalesced = 0;
+        maxBatch = 0;
+        fullBatches = 0;
+    }
+}
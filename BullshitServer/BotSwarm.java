@@ -0,0 +1,381 @@
+/*
+ * BotSwarm load tests a game server without the real switch or real bots.  It
+ * is a LocalSwitch that plays every bot itself: once the game server has
+ * registered, it logs in a number of synthetic bots (LOGIN_INFORM) and then
+ * answers every command the game server sends them the way a simple bot
+ * would, after a random think time of 0 to 2x the configured mean.
+ *
+ *   c4        echoes GAME_INITIALIZE and answers ACTION_REQUEST with a random
+ *             column that is not full (ACTION_REPLY).
+ *   bullshit  echoes GAME_INITIALIZE, keeps its hand from CARD_MESSAGE,
+ *             answers PLAYCARDS_REQUEST with all cards of the requested rank
+ *             (or one other card, a bluff) and TURN_SUMMARY with TURN_REPLY,
+ *             calling bullshit with probability -Dcw.swarmBullshitRate
+ *             (default 0.2).
+ *
+ * A bot disconnected by the game server logs in again a second later.
+ *
+ * Every -Dcw.swarmReportMillis (default 5000) the swarm prints games finished
+ * per second, the latency from a bot's reply to the game server's next
+ * command in the same game (the time the game server took to act on it), and
+ * error counts: GAME_ABORTs and DISCONNECT_BOT_REMOTEs received and frames
+ * that made no sense to the bot.  Games and protocol tests only start on the
+ * game server's CHALLENGE ticks, so its challenge interval bounds games/sec.
+ *
+ *     java cw_generic.BotSwarm [port] [c4|bullshit] [bots] [thinkMillis]
+ *
+ * The game server's own wire options (binary, compression, ACK1) are
+ * accepted as LocalSwitch accepts them.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.log4j.Logger;
+
+public class BotSwarm extends LocalSwitch {
+    private static final double bullshitRate = Double.parseDouble(System.getProperty("cw.swarmBullshitRate", "0.2"));
+    private static final long reportMillis = Long.getLong("cw.swarmReportMillis", 5000);
+
+    private final boolean connectFour;
+    private final int botCount;
+    private final long thinkMillis;
+    private final TimerWheel timerWheel;
+    private final IntObjectMap<Bot> bots = new IntObjectMap<Bot>();
+    private final Map<String, Game> games = new ConcurrentHashMap<String, Game>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong gamesFinished = new AtomicLong();
+    private final AtomicLong protocolTests = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong unexpected = new AtomicLong();
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private long lastReport;
+    private long lastGames;
+
+    public BotSwarm(int port, boolean connectFour, int botCount, long thinkMillis, Logger logger) {
+        super(port, true, true);
+        this.connectFour = connectFour;
+        this.botCount = botCount;
+        this.thinkMillis = thinkMillis;
+        this.timerWheel = new TimerWheel(10, logger);
+    }
+
+    public static void main(String args[]) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 3000;
+        boolean connectFour = (args.length < 2) || !"bullshit".equalsIgnoreCase(args[1]);
+        int botCount = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        long thinkMillis = (args.length > 3) ? Long.parseLong(args[3]) : 50;
+        BotSwarm swarm = new BotSwarm(port, connectFour, botCount, thinkMillis, Logger.getLogger(BotSwarm.class));
+        swarm.start();
+        Thread.currentThread().join();
+    }
+
+    @Override
+    public void start() throws java.io.IOException {
+        timerWheel.start();
+        super.start();
+        System.out.println("BotSwarm: " + botCount + (connectFour ? " Connect Four" : " Bullshit") + " bots, "
+                + thinkMillis + "ms mean think time, waiting for the game server");
+    }
+
+    // Log the swarm in once the first connection of the game server is up.
+    @Override
+    protected void registered(Connection c) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        for (int bid = 1; bid <= botCount; bid++) {
+            Bot b = connectFour ? new ConnectFourBot(bid) : new BullshitBot(bid);
+            bots.put(bid, b);
+            b.login();
+        }
+        lastReport = System.nanoTime();
+        timerWheel.schedulePeriodic(this::report, reportMillis);
+    }
+
+    @Override
+    protected void frameReceived(Connection c, String type, int bid, String payload) {
+        framesIn.incrementAndGet();
+        if (bid < 0) {
+            return;         // EXECUTE_PROCEDURE and the like are for the switch
+        }
+        Bot b = bots.get(bid);
+        if (b == null) {
+            unexpected.incrementAndGet();
+            return;
+        }
+        b.receive(type, payload);
+    }
+
+    // Hand a bot's command to the game server over one of its connections.
+    private void send(int bid, String type, String meta) {
+        List<Connection> cs = connections;
+        if (cs.isEmpty()) {
+            return;
+        }
+        try {
+            cs.get(Math.floorMod(bid, cs.size())).send(type, bid + ":" + meta);
+            framesOut.incrementAndGet();
+        } catch (IndexOutOfBoundsException e) {
+            // The connection went away meanwhile.
+        }
+    }
+
+    private void later(Runnable r, long delayMillis) {
+        if (delayMillis <= 0) {
+            r.run();
+        } else {
+            timerWheel.schedule(r, delayMillis);
+        }
+    }
+
+    private long think() {
+        return (thinkMillis <= 0) ? 0 : ThreadLocalRandom.current().nextLong(2 * thinkMillis + 1);
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        long finished = gamesFinished.get();
+        double seconds = (now - lastReport) / 1e9;
+        System.out.printf("BotSwarm: %.1f games/s (%d total, %d protocol tests, %d in progress), reply latency p50 %.2fms p99 %.2fms max %.2fms (%d), "
+                + "errors: %d aborts, %d disconnects, %d unexpected; frames in %d out %d%n",
+                (finished - lastGames) / seconds, finished, protocolTests.get(), games.size(),
+                latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6, latency.getCount(),
+                aborts.get(), disconnects.get(), unexpected.get(), framesIn.get(), framesOut.get());
+        latency.reset();
+        lastReport = now;
+        lastGames = finished;
+    }
+
+    // One game as seen by the bots in it.  repliedAt is when one of them last
+    // answered the game server and no command for the game has arrived since.
+    private class Game {
+        private final String key;
+        private final AtomicLong repliedAt = new AtomicLong();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Game(String key) {
+            this.key = key;
+        }
+
+        void replied() {
+            repliedAt.set(System.nanoTime());
+        }
+
+        void commandArrived() {
+            long t = repliedAt.getAndSet(0);
+            if (t != 0) {
+                latency.record(System.nanoTime() - t);
+            }
+        }
+
+        void finish() {
+            if (finished.compareAndSet(false, true)) {
+                gamesFinished.incrementAndGet();
+                games.remove(key);
+            }
+        }
+
+        void abort() {
+            if (finished.compareAndSet(false, true)) {
+                aborts.incrementAndGet();
+                games.remove(key);
+            }
+        }
+    }
+
+    private abstract class Bot {
+        protected final int bid;
+        protected Game game;
+
+        Bot(int bid) {
+            this.bid = bid;
+        }
+
+        synchronized void login() {
+            game = null;
+            send(bid, "LOGIN_INFORM", "mode=1,language=java");
+        }
+
+        synchronized void receive(String type, String payload) {
+            if (game != null) {
+                game.commandArrived();
+            }
+            if (type.equals("DISCONNECT_BOT_REMOTE")) {
+                disconnects.incrementAndGet();
+                later(this::login, 1000);
+            } else if (type.equals("GAME_ABORT")) {
+                if (game != null) {
+                    game.abort();
+                }
+                game = null;
+            } else if (!handle(type, payload)) {
+                unexpected.incrementAndGet();
+            }
+        }
+
+        // Game specific commands; false if the command made no sense.
+        protected abstract boolean handle(String type, String payload);
+
+        protected Game join(String key) {
+            return games.computeIfAbsent(key, Game::new);
+        }
+
+        // Answer after thinking; the game clock starts when the answer is sent.
+        protected void reply(String type, String meta) {
+            final Game g = game;
+            later(() -> {
+                if (g != null) {
+                    g.replied();
+                }
+                send(bid, type, meta);
+            }, think());
+        }
+    }
+
+    private class ConnectFourBot extends Bot {
+        private final int[] height = new int[7];
+        private String gid;
+
+        ConnectFourBot(int bid) {
+            super(bid);
+        }
+
+        @Override
+        protected boolean handle(String type, String payload) {
+            switch (type) {
+                case "GAME_INITIALIZE":
+                    Arrays.fill(height, 0);
+                    gid = payload;
+                    game = join("c4:" + gid);
+                    reply("GAME_INITIALIZE", gid);
+                    return true;
+                case "ACTION_REQUEST":
+                    if (game == null) {
+                        return false;
+                    }
+                    int last = Integer.parseInt(payload.trim());
+                    if (last >= 1 && last <= 7) {
+                        height[last - 1]++;
+                    }
+                    int col = freeColumn();
+                    if (col < 0) {
+                        return false;
+                    }
+                    height[col]++;
+                    reply("ACTION_REPLY", gid + ":" + (col + 1));
+                    return true;
+                case "GAME_REPORT":
+                    if (game != null) {
+                        game.finish();
+                    }
+                    game = null;
+                    return true;
+                case "SERVER_MESSAGE":
+                    if (payload.equals("Protocol Test Passed!")) {
+                        protocolTests.incrementAndGet();
+                        if (game != null) {
+                            games.remove(game.key);
+                        }
+                        game = null;
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private int freeColumn() {
+            int start = ThreadLocalRandom.current().nextInt(7);
+            for (int i = 0; i < 7; i++) {
+                int col = (start + i) % 7;
+                if (height[col] < 6) {
+                    return col;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private class BullshitBot extends Bot {
+        private final int[] hand = new int[13];
+
+        BullshitBot(int bid) {
+            super(bid);
+        }
+
+        @Override
+        protected boolean handle(String type, String payload) {
+            switch (type) {
+                case "GAME_INITIALIZE":
+                    Arrays.fill(hand, 0);
+                    game = null;
+                    reply("GAME_INITIALIZE", "accept");
+                    return true;
+                case "GAME_ORDER":
+                    game = join("bs:" + payload);
+                    return true;
+                case "CARD_MESSAGE":
+                    for (String card : payload.split(",")) {
+                        if (!card.isEmpty()) {
+                            hand[Integer.parseInt(card.trim())]++;
+                        }
+                    }
+                    return true;
+                case "PLAYCARDS_REQUEST":
+                    String cards = play(Integer.parseInt(payload.trim()));
+                    if (cards == null) {
+                        return false;
+                    }
+                    reply("PLAYCARDS_REPLY", cards);
+                    return true;
+                case "TURN_SUMMARY":
+                    reply("TURN_REPLY", (ThreadLocalRandom.current().nextDouble() < bullshitRate) ? "bullshit" : "pass");
+                    return true;
+                case "GAME_WINNER":
+                    if (game != null) {
+                        game.finish();
+                    }
+                    game = null;
+                    return true;
+                case "BULLSHIT_RESULT":
+                case "SERVER_MESSAGE":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        // Every card of the wanted rank, or one other card if there is none.
+        private String play(int wanted) {
+            int rank = wanted;
+            if (wanted < 0 || wanted >= hand.length || hand[wanted] == 0) {
+                rank = -1;
+                for (int i = 0; i < hand.length && rank < 0; i++) {
+                    if (hand[i] > 0) {
+                        rank = i;
+                    }
+                }
+                if (rank < 0) {
+                    return null;
+                }
+                hand[rank]--;
+                return Integer.toString(rank);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < hand[rank]; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(rank);
+            }
+            hand[rank] = 0;
+            return sb.toString();
+        }
+    }
+}
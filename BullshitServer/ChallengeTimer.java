@@ -1,16 +1,18 @@
 /**
  * The ChallengeTimer class periodically injects a “CHALLENGE” command into the
- * command queue.  challengeInterval controls the width of this interval.
+ * command queue.  challengeInterval controls the width of this interval.  The
+ * ticks are driven by the shared TimerWheel rather than a dedicated thread.
  */
 package cw_generic;
 
 import java.util.concurrent.*;
 import org.apache.log4j.Logger;
 
-public class ChallengeTimer extends Thread {
+public class ChallengeTimer implements Runnable {
     private Logger logger;
     public BlockingQueue<Command> commandQueue = new LinkedBlockingQueue();
     private long challengeInterval;
+    private final Command cmd = new Command(CommandType.CHALLENGE, "null");
 
     public ChallengeTimer(BlockingQueue<Command> commandQueue, Logger logger, long challengeInterval) {
         this.logger = logger;
@@ -18,21 +20,16 @@ public class ChallengeTimer extends Thread {
         this.challengeInterval = challengeInterval;        
     }
 
+    public TimerWheel.Timeout schedule(TimerWheel timerWheel) {
+        logger.info("Challenge Timer Started");
+        return timerWheel.schedulePeriodic(this, challengeInterval);
+    }
+
+    // Runs on the TimerWheel thread.  A tick dropped because the queue is full
+    // is harmless: the next CHALLENGE covers it.
     @Override
     public void run() {
-        logger.info("Challenge Timer Started");
-        int x=0;
-        try {
-            this.setName("ChallengeInterval");
-            Command cmd=new Command("CHALLENGE", "null");
-            while(true){
-                Thread.sleep(challengeInterval);             
-                commandQueue.add(cmd);
-            }
-        } catch (InterruptedException e) {
-            logger.fatal("ChallengeInterval Interrupted");
-            return;
-        }
+        cmd.stamp();
+        commandQueue.offer(cmd);
     }
 }
-
@@ -0,0 +1,185 @@
+/*
+ * FrameCompressor deflates large binary frame payloads (GAME_REPORT move
+ * lists, insert_gamedata procedures, CARD_MESSAGE hands) using a preset
+ * dictionary.  Game records are short and highly repetitive (comma separated
+ * columns 1-7, card ranks 0-12, a handful of fixed phrases), so a dictionary
+ * seeded with those patterns lets even a few hundred bytes compress well.
+ *
+ * Compression is part of the binary protocol and is negotiated with it: a
+ * server started with -Dcw.compress=true offers feature() next to BINARY1 in
+ * REGISTER.  The feature name carries the dictionary's Adler-32, so the
+ * switch only accepts it if it holds the same dictionary.  Once accepted, a
+ * payload of at least cw.compressThreshold bytes (default 512) is sent
+ * compressed when that makes it smaller: the opcode gets the
+ * WireProtocol.COMPRESSED bit and the payload becomes
+ *
+ *     int rawLength | deflate stream (zlib, preset dictionary)
+ *
+ * -Dcw.compressDictionary=file replaces the built-in dictionary, e.g. with
+ * one trained on real game records; the switch needs the same file.
+ *
+ * Bytes saved and time spent compressing/decompressing are counted for the
+ * whole process (summary()).  Each connection direction owns its own
+ * FrameCompressor; instances are not thread safe.
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+public class FrameCompressor {
+    private static final boolean offered = Boolean.getBoolean("cw.compress");
+    private static final int threshold = Integer.getInteger("cw.compressThreshold", 512);
+    private static final byte[] dictionary = loadDictionary(System.getProperty("cw.compressDictionary"));
+    private static final String feature = "DEFLATE_" + Long.toHexString(adler32(dictionary));
+
+    private static final AtomicLong framesCompressed = new AtomicLong();
+    private static final AtomicLong rawBytes = new AtomicLong();
+    private static final AtomicLong compressedBytes = new AtomicLong();
+    private static final AtomicLong deflateNanos = new AtomicLong();
+    private static final AtomicLong inflateNanos = new AtomicLong();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private byte[] buf = new byte[4096];
+
+    public static boolean offered() {
+        return offered;
+    }
+
+    // Protocol feature token, e.g. DEFLATE_5c1e2a0f.
+    public static String feature() {
+        return feature;
+    }
+
+    // Compressed form of raw (rawLength prefix included), or null if raw is
+    // below the threshold or would not get smaller.
+    public byte[] compress(byte[] raw) {
+        if (raw.length < threshold) {
+            return null;
+        }
+        long start = System.nanoTime();
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(raw);
+        deflater.finish();
+        int n = 4;
+        while (!deflater.finished()) {
+            if (n == buf.length) {
+                if (n >= raw.length) {
+                    break;      // already no smaller
+                }
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            n += deflater.deflate(buf, n, buf.length - n);
+        }
+        deflateNanos.addAndGet(System.nanoTime() - start);
+        if (!deflater.finished() || n >= raw.length) {
+            return null;
+        }
+        ByteBuffer.wrap(buf).putInt(0, raw.length);
+        framesCompressed.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+        compressedBytes.addAndGet(n);
+        return Arrays.copyOf(buf, n);
+    }
+
+    // Inflate a compressed payload held in src[start, end).
+    public byte[] decompress(ByteBuffer src, int start, int end) throws IOException {
+        if (end - start < 4) {
+            throw new IOException("Truncated compressed payload");
+        }
+        int rawLength = src.getInt(start);
+        if (rawLength < 0 || rawLength > FrameDecoder.MAX_FRAME) {
+            throw new IOException("Bad compressed payload length " + rawLength);
+        }
+        long t = System.nanoTime();
+        byte[] in = new byte[end - start - 4];
+        src.get(start + 4, in);
+        byte[] out = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(in);
+        try {
+            int n = 0;
+            while (n < rawLength) {
+                int k = inflater.inflate(out, n, rawLength - n);
+                if (k == 0) {
+                    if (!inflater.needsDictionary()) {
+                        throw new IOException("Compressed payload shorter than " + rawLength + " bytes");
+                    }
+                    inflater.setDictionary(dictionary);
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        } finally {
+            inflateNanos.addAndGet(System.nanoTime() - t);
+        }
+        return out;
+    }
+
+    // Release the native zlib state.
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    public static String summary() {
+        long raw = rawBytes.get();
+        long comp = compressedBytes.get();
+        return "Compression: " + framesCompressed.get() + " frames, " + raw + " -> " + comp + " bytes ("
+                + (raw - comp) + " saved), " + (deflateNanos.get() / 1000) + "us deflating, "
+                + (inflateNanos.get() / 1000) + "us inflating";
+    }
+
+    private static byte[] loadDictionary(String file) {
+        if (file != null) {
+            try {
+                return Files.readAllBytes(Paths.get(file));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return builtInDictionary();
+    }
+
+    // Typical fragments of game records.  zlib favours matches near the end
+    // of the dictionary, so the most common patterns come last.
+    private static byte[] builtInDictionary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("No Moves Recorded is not a valid play Column  is already full ");
+        sb.append("Dealt hand  to bot Opponent disconnected or made an invalid move!");
+        sb.append("insert_gamedata:");
+        for (int rank = 0; rank < 13; rank++) {
+            for (int k = 0; k < 4; k++) {
+                sb.append(rank).append(',');
+            }
+        }
+        for (int rank = 0; rank < 13; rank++) {
+            sb.append(rank).append(',');
+        }
+        for (int a = 1; a <= 7; a++) {
+            for (int b = 1; b <= 7; b++) {
+                sb.append(a).append(',').append(b).append(',');
+            }
+        }
+        sb.append("4,4,3,5,4,3,5,5,3,3,2,6,4,4,");
+        try {
+            return sb.toString().getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long adler32(byte[] b) {
+        Adler32 a = new Adler32();
+        a.update(b);
+        return a.getValue();
+    }
+}
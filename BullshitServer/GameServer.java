@@ -13,6 +13,12 @@
  * the appropriate routine.  It is important to note that the CommandProcessor
  * is a single threaded object.  Only one command can be acted upon
  * simultaneously.  This reduces the risk of concurrency issues.
+ * When processorShards is greater than one, the CommandProcessor becomes a
+ * router instead: commands belonging to a game are handed to one of N
+ * single-threaded CommandShard loops chosen by game id, so each game (and
+ * every bot in it) is still processed in order by exactly one thread.
+ * Commands which touch more than one game (logins, disconnects, CHALLENGE,
+ * ...) are executed by the router only after every shard has drained.
  * GameServer subroutines are fairly self documenting.  Login functions add new
  * bot instances to the bots array.  Disconnections must be robustly handled
  * to prevent alienating data.  With each CHALLENGE command, new matches are
@@ -42,17 +48,28 @@ package cw_generic;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 public class GameServer {
 
-    public final BlockingQueue<Command> commandQueue = new LinkedBlockingQueue();                                    // List of all commands to be processed by the commandProcessor()
-    public final BlockingQueue<CmdPack> sendQueue = new LinkedBlockingQueue();                                    // List of commands to be sent to the switch and/or bots        
+    private final OverloadGuard commandGuard = newGuard("commandQueue", "cw.commandQueuePolicy", 0);       // What to do when the commandQueue is full
+    private final OverloadGuard sendGuard = newGuard("sendQueue", "cw.sendQueuePolicy", 0);                // What to do when the sendQueue is full
+    private final OverloadGuard[] guards = { commandGuard, sendGuard };
+    public final BlockingQueue<Command> commandQueue = new GuardedQueue<Command>(newRingBuffer("cw.commandQueueCapacity"), commandGuard,
+            cmd -> isLowPriority(cmd.getCommandType()), cmd -> cmd.getBID());                             // List of all commands to be processed by the commandProcessor()
+    public final RoutedQueue<CmdPack> sendQueue = newSendQueue(Integer.getInteger("cw.switchConnections", 1));  // List of commands to be sent to the switch and/or bots, one lane per switch connection
     private static final Logger logger = Logger.getLogger(GameServer.class);
-    static private List<BotManager> bots = Collections.synchronizedList(new ArrayList<BotManager>());    // Actively maintained to include all online bots.
-    static private List<GameManager> games = Collections.synchronizedList(new ArrayList<GameManager>());   // All currently active games.
+    static private BotRegistry bots = new BotRegistry();                                                  // Actively maintained to include all online bots, indexed by bid and gid.
+    static private IntObjectMap<GameManager> games = new IntObjectMap<GameManager>(1024);                  // All currently active games, indexed by gid.
     private long challengeInterval = 60000;  // Sets the frequency of CHALLENGE events in miliseconds
+    private int processorShards = 1;         // Number of CommandShard event loops.  1 keeps the single CommandProcessor.
+    private int commandBatch = 256;          // Maximum number of commands drained from the commandQueue at once.
+    private long timerTick = 10;             // Resolution of the TimerWheel in miliseconds
+    private long deadlineSlack = 2000;       // Grace added to a bot's actionTime before the server side deadline fires
+    private final LatencyStats latency = LatencyStats.global();   // Queue wait, handler and send wait histograms per command type
+    private TimerWheel timerWheel;           // Drives every server timer: CHALLENGE, CLEAN_OUTPUT, pings and move deadlines
 
     // Configure Switch Listener (connection & authentication parameters)
     private String serverName   = "cu_bullshit_toby";
@@ -60,20 +77,69 @@ public class GameServer {
     private String serverKey    = "13579";
     private int    serverPort   = 3000;
 
+    // commandQueue and sendQueue are preallocated MPSC ring buffers.  Capacity
+    // and the consumer wait strategy (SPIN, YIELD or PARK) are system properties.
+    private static <E> BlockingQueue<E> newRingBuffer(String capacityProperty) {
+        return new RingBufferQueue<E>(Integer.getInteger(capacityProperty, 65536),
+                RingBufferQueue.WaitStrategy.valueOf(System.getProperty("cw.waitStrategy", "PARK")));
+    }
+
+    // One sendQueue lane per switch connection, chosen by bid so that each
+    // bot's messages stay in order on a single connection.
+    private RoutedQueue<CmdPack> newSendQueue(int connections) {
+        List<BlockingQueue<CmdPack>> lanes = new ArrayList<BlockingQueue<CmdPack>>();
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            lanes.add(new GuardedQueue<CmdPack>(newRingBuffer("cw.sendQueueCapacity"), sendGuard,
+                    pack -> isLowPriority(pack.cmd.getCommandType()), pack -> pack.getBID()));
+        }
+        return new RoutedQueue<CmdPack>(lanes, pack -> pack.getBID());
+    }
+
+    // Overload policy (BLOCK, SHED or DISCONNECT) for one bounded queue.
+    // SHED is the default; see OverloadGuard for why no policy blocks forever.
+    private static OverloadGuard newGuard(String name, String policyProperty, int capacity) {
+        return new OverloadGuard(name, OverloadGuard.Policy.valueOf(System.getProperty(policyProperty, "SHED")), capacity);
+    }
+
+    // Messages which may be shed under overload: chatter and timer ticks that
+    // will be regenerated anyway.
+    private static boolean isLowPriority(String type) {
+        return "SERVER_MESSAGE".equals(type) || "CHALLENGE".equals(type);
+    }
+
     public static void main(String args[]) throws Exception {
         PropertyConfigurator.configure(args[0]);
         GameServer gs = new GameServer(args);
     }
 
     public GameServer(String[] args) throws Exception {
-        this.challengeInterval = Long.parseLong(args[1]);
-        new Thread(new SwitchListener(this.commandQueue, this.sendQueue, logger, serverIP, serverName, serverPort, serverKey), "SwitchListener").start();
+        initialize(args);
+        registerHandlers();
+        latency.register(logger);
+        timerWheel = new TimerWheel(this.timerTick, logger);
+        timerWheel.start();
+        for (int i = 0; i < sendQueue.lanes(); i++) {
+            ServerThreads.start(new SwitchListener(this.commandQueue, this.sendQueue.lane(i), timerWheel, logger, serverIP, serverName, serverPort, serverKey), "SwitchListener-" + i);
+        }
+        startShards();
         new Thread(new CommandProcessor(), "CommandProcessor").start();
-        new Thread(new ChallengeTimer(this.commandQueue, logger, this.challengeInterval), "ChallengeTimer").start();
+        new ChallengeTimer(this.commandQueue, logger, this.challengeInterval).schedule(timerWheel);
 
     }
    
 
+    // Set several parameters defined at the command line.  Optional tuning
+    // parameters are passed as system properties (-Dcw.name=value).
+    private void initialize(String[] args) {
+        this.challengeInterval = Long.parseLong(args[1]);
+        this.serverIP = System.getProperty("cw.switchHost", this.serverIP);
+        this.serverPort = Integer.getInteger("cw.switchPort", this.serverPort);
+        this.processorShards = Integer.getInteger("cw.processorShards", this.processorShards);
+        this.commandBatch = Math.max(1, Integer.getInteger("cw.commandBatch", this.commandBatch));
+        this.timerTick = Long.getLong("cw.timerTick", this.timerTick);
+        this.deadlineSlack = Long.getLong("cw.deadlineSlack", this.deadlineSlack);
+    }
+
     /*
      * Login a connecting bot.  The LOGIN_INFORM command sent from the switch
      * has two parameters in metaData.  The first parameter is always an integer
@@ -117,16 +183,14 @@ public class GameServer {
         //If incomming bid is valid and does not already exist in the bots list, add new bot.
         if (cmd.getBID()!=-1 & (b = botByBID(cmd.getBID())) != null) {
             //Verify that bot is involved in a challenge
+            clearDeadline(b);
             if ((g = gameByGID(b.getGID())) != null ) {
                 if( !g.isWaiting( b.getBID() ) ) return;
                 g.AddMoveForHistory("Bot: " + b.getBID() + " accepted challenge.");
                 g.setReady(b.getBID());
                 if(g.allBotsReady()){
                     //Send all the players the order of play;
-                    for( int i = 0; i < g.GetNumPlayers(); i++ )
-                    {
-                        SendMessage( new Command( "GAME_ORDER",  g.GetSeatingChart() ), g.GetBotIdByPosition( i ), 0 );
-                    }
+                    BroadcastMessage( new Command( "GAME_ORDER",  g.GetSeatingChart() ), Seats( g, 0 ), 0 );
 
                     //Deal Cards to all players
                     g.DealCardsForNewGame();
@@ -166,21 +230,21 @@ public class GameServer {
         {
             BotManager bot = botByBID( g.GetBotIdByPosition(i));
             bot.setBusy( false );
+            clearDeadline( bot );
         }
-        games.remove( g );
+        games.remove(g.getGID());
     }
 
     private void playcardsReponse( Command cmd )
     {
         BotManager b;
         GameManager g;
-        String[] metaData;
         String discardedCards;
         if ((b = botByBID(cmd.getBID())) != null) {
+            clearDeadline(b);
             if ((g = gameByGID(b.getGID())) != null) {
-                metaData = cmd.getMetaData().split(":");
-                if (metaData.length == 2) {
-                    discardedCards = metaData[1];                     // separated by commas
+                if (cmd.getFieldCount() == 2) {
+                    discardedCards = cmd.getField(1);                     // separated by commas
 
                     //Verify Discarded Cards are Valid & Legal (GameManagerRoutines)
                     if( !g.IsValidMove( cmd.getBID(), discardedCards ) )
@@ -197,14 +261,8 @@ public class GameServer {
                         return;
                     }
                     g.AddMoveForHistory( "Bot <" + b.getBID() + "> played cards : " + discardedCards + " expected a " + g.GetCurrentMoveCard() );
-                    for( int i = 0; i < g.GetNumPlayers(); i++ )
-                    {
-                        //don't send a turn summary to the player who just played
-                        if( g.GetBotIdByPosition(i) != b.getBID() )
-                        {
-                            SendMessage( new Command( "TURN_SUMMARY", g.GetTurnSummary() ), g.GetBotIdByPosition(i), 10000 );
-                        }
-                    }
+                    //don't send a turn summary to the player who just played
+                    BroadcastMessage( new Command( "TURN_SUMMARY", g.GetTurnSummary() ), Seats( g, b.getBID() ), 10000 );
                     g.SetWaitingForBullShit();
                     //Send TURN_SUMMARY commands to all bots.
                     //If game was a protocol test, terminate game and reset bot.
@@ -230,13 +288,12 @@ public class GameServer {
     private void bullshitResponse(Command cmd){
         BotManager b;
         GameManager g;
-        String[] metaData;
         if ((b = botByBID(cmd.getBID())) != null) {
+            clearDeadline(b);
             if ((g = gameByGID(b.getGID())) != null) {
-                metaData = cmd.getMetaData().split(":");
-                if (metaData.length == 2) {
+                if (cmd.getFieldCount() == 2) {
                     //The 1st parameter (not including bid) is the call decision
-                    if (metaData[1].equals("bullshit")){
+                    if (cmd.fieldEquals(1, "bullshit")){
                         g.SetBSResponse( cmd.getBID(), true );
                     }else{
                         g.SetBSResponse( cmd.getBID(), false );
@@ -247,10 +304,7 @@ public class GameServer {
                         if( g.BSCalled() )
                         {
                             //Send BSCallSummary
-                            for( int i = 0; i < g.GetNumPlayers(); i++ )
-                            {
-                                SendMessage( new Command( "BULLSHIT_RESULT", g.GetBullShitCallSummary() ), g.GetBotIdByPosition(i), 0 );
-                            }
+                            BroadcastMessage( new Command( "BULLSHIT_RESULT", g.GetBullShitCallSummary() ), Seats( g, 0 ), 0 );
 
                             String pileOfCards = g.ProcessBullshit();
                             SendMessage( new Command( "CARD_MESSAGE", pileOfCards ), g.GetBullShitLoser(), 0 );
@@ -260,10 +314,7 @@ public class GameServer {
                         if( g.HasWinner() )
                         {
                             g.AddMoveForHistory( "A Winner was found for game <" + g.getGID() + "> it was bot <" + g.GetWinnerId() + ">");
-                            for( int i = 0; i < g.GetNumPlayers(); i++ )
-                            {
-                                SendMessage( new Command( "GAME_WINNER", String.valueOf(g.GetWinnerId()) ), g.GetBotIdByPosition(i), 0 );
-                            }
+                            BroadcastMessage( new Command( "GAME_WINNER", String.valueOf(g.GetWinnerId()) ), Seats( g, 0 ), 0 );
                             SqlConnector sqlInfo = new SqlConnector();
                             sqlInfo.SaveGame( g.GetWinnerId(), g.GetBotIdByPosition(0), g.GetBotIdByPosition(1), g.GetBotIdByPosition(2), g.GetBotIdByPosition(3), g.GetGameHistory() );
                             EndGame( g );
@@ -292,17 +343,17 @@ public class GameServer {
         {
             int[] botIds = SelectBotsForChallenge();
             GameManager g = new GameManager( botIds, logger );
-            games.add( g );
+            games.put(g.getGID(), g);
             g.AddMoveForHistory( "Challenge started");
 
             for( int i = 0; i < g.GetNumPlayers(); i++ )
             {
                 int botId = g.GetBotIdByPosition(i);
                 BotManager b = botByBID( botId );
-                b.setGID( g.getGID() );
+                bots.setGame(b, g.getGID());
                 b.setBusy(true);
-                SendMessage(new Command("GAME_INITIALIZE", "New game request from server"), botId, 0);
             }
+            BroadcastMessage(new Command("GAME_INITIALIZE", "New game request from server"), Seats(g, 0), 0);
         }
         else
         {
@@ -314,7 +365,7 @@ public class GameServer {
     private boolean HasBotsAvailableForGame()
     {
         int numAvailable = 0;
-        for (BotManager b : bots) {
+        for (BotManager b : bots.values()) {
             if (!b.isBusy())
             {
                 numAvailable++;
@@ -329,9 +380,7 @@ public class GameServer {
         int numBotsPerGame = 4;
         int[] botIds = new int[numBotsPerGame];
         int numFound = 0;
-        for( int i = bots.size() -1; i >= 0; i--) {
-        //for (BotManager b : bots) {
-            BotManager b = bots.get( i );
+        for (BotManager b : bots.values()) {
             if (!b.isBusy())
             {
                 botIds[numFound] = b.getBID();
@@ -349,6 +398,40 @@ public class GameServer {
         logger.warn(cmd.getMetaData());
     }
 
+    /*
+     * Server side move deadlines.  The switch enforces actionTime itself; the
+     * server arms its own deadline, with deadlineSlack of grace, on the shared
+     * TimerWheel whenever a bot is sent a command that requires a response.
+     * Any reply from the bot clears it.  If it fires, the TimerWheel queues a
+     * MOVE_TIMEOUT and the bot is disconnected by the game server.
+     */
+    private void armDeadline(int bid, long actionTime) {
+        BotManager b;
+        if (bid > 0 && actionTime > 0 && (b = botByBID(bid)) != null) {
+            clearDeadline(b);
+            b.setMoveTimer(timerWheel.schedule(() -> commandQueue.offer(new Command(CommandType.MOVE_TIMEOUT, Integer.toString(bid))),
+                    actionTime + deadlineSlack));
+        }
+    }
+
+    private void clearDeadline(BotManager b) {
+        TimerWheel.Timeout t = b.getMoveTimer();
+        if (t != null) {
+            t.cancel();
+            b.setMoveTimer(null);
+        }
+    }
+
+    // Ignore timeouts made stale by a reply or a newer request.
+    private void moveTimeout(Command cmd) {
+        BotManager b;
+        if ((b = botByBID(cmd.getBID())) != null && b.getMoveTimer() != null && b.getMoveTimer().isExpired()) {
+            b.setMoveTimer(null);
+            logger.warn("Bot " + b.getBID() + " failed to respond within its action time.");
+            disconnectionByGameServer(b, "Bot failed to respond within its action time.");
+        }
+    }
+
     /*
      * If the bot is disconnected by the game server, relay the information to
      * switch.  The message will eventually make its way back to the bot &
@@ -366,6 +449,53 @@ public class GameServer {
     private void SendMessage( Command command, int BotId, int ResponseTime )
     {
         sendQueue.add( new CmdPack( command, BotId, ResponseTime ) );
+        armDeadline( BotId, ResponseTime );
+    }
+
+    /*
+     * Send the same command to several bots.  The command is built and
+     * serialized once: one multicast CmdPack per sendQueue lane carries it to
+     * every target in that lane, so each bot still gets it over its own
+     * switch connection, in order with everything else sent to it.
+     */
+    private void BroadcastMessage( Command command, int[] BotIds, int ResponseTime )
+    {
+        int lanes = sendQueue.lanes();
+        for( int lane = 0; lane < lanes; lane++ )
+        {
+            int[] targets = new int[BotIds.length];
+            int n = 0;
+            for( int BotId : BotIds )
+            {
+                if( sendQueue.laneOf( BotId ) == lane )
+                {
+                    targets[n++] = BotId;
+                }
+            }
+            if( n > 0 )
+            {
+                sendQueue.add( new CmdPack( command, Arrays.copyOf( targets, n ), ResponseTime ) );
+            }
+        }
+        for( int BotId : BotIds )
+        {
+            armDeadline( BotId, ResponseTime );
+        }
+    }
+
+    // Every seat at the table except ExceptBotId (0 for none).
+    private int[] Seats( GameManager g, int ExceptBotId )
+    {
+        int[] seats = new int[g.GetNumPlayers()];
+        int n = 0;
+        for( int i = 0; i < g.GetNumPlayers(); i++ )
+        {
+            if( g.GetBotIdByPosition(i) != ExceptBotId )
+            {
+                seats[n++] = g.GetBotIdByPosition(i);
+            }
+        }
+        return Arrays.copyOf( seats, n );
     }
     /*
      * If a bot was disconnected by the switch (failed response time tests)
@@ -386,6 +516,7 @@ public class GameServer {
      * to release any resources bound to that bot (active games, etc).
      */
     private void disconnect(BotManager b) {
+        clearDeadline(b);
         if (b.isBusy()) {
             GameManager g;
             if ((g = gameByGID(b.getGID())) != null) {
@@ -399,8 +530,9 @@ public class GameServer {
                     }
                     BotManager gameBot = botByBID( g.GetBotIdByPosition( i ));
                     gameBot.setBusy( false );
+                    clearDeadline( gameBot );
                 }
-                games.remove(g);
+                games.remove(g.getGID());
             }
         }        
         bots.remove(b);
@@ -429,59 +561,157 @@ public class GameServer {
     }
 
     private BotManager botByBID(int bid) {
-        for (BotManager b : bots) {
-            if (b.getBID() == bid) {
-                return b;
+        return bots.get(bid);
+    }
+
+    private BotManager botByGID(int gid) {
+        return bots.byGame(gid);
+    }
+
+    private GameManager gameByGID(int gid) {
+        return games.get(gid);
+    }
+
+    /*
+     * Handler table indexed by CommandType ordinal.  Command types are resolved
+     * into an opcode when the Command is created, so dispatching a command is a
+     * single array lookup instead of a chain of string comparisons.
+     */
+    private interface CommandHandler {
+        void handle(Command cmd);
+    }
+
+    private final CommandHandler[] handlers = new CommandHandler[CommandType.values().length];
+
+    private void registerHandlers() {
+        handlers[CommandType.LOGIN_INFORM.ordinal()]          = cmd -> login(cmd);
+        handlers[CommandType.GAME_INITIALIZE.ordinal()]       = cmd -> acceptChallenge(cmd);
+        handlers[CommandType.DISCONNECT_BOT_REMOTE.ordinal()] = cmd -> disconnectionBySwitch(cmd);
+        handlers[CommandType.CHALLENGE.ordinal()]             = cmd -> challengeEvent();
+        handlers[CommandType.TURN_REPLY.ordinal()]            = cmd -> bullshitResponse(cmd);
+        handlers[CommandType.SERVER_MESSAGE.ordinal()]        = cmd -> switchMessage(cmd);
+        handlers[CommandType.PLAYCARDS_REPLY.ordinal()]       = cmd -> playcardsReponse(cmd);
+        handlers[CommandType.MOVE_TIMEOUT.ordinal()]          = cmd -> moveTimeout(cmd);
+    }
+
+    private void dispatch(Command cmd) {
+        CommandHandler h = handlers[cmd.getOpcode().ordinal()];
+        if (h != null) {
+            String type = cmd.getOpcode().name();
+            latency.recordSince(LatencyStats.Stage.QUEUE_WAIT, type, cmd.getCreatedAt());
+            long start = System.nanoTime();
+            try {
+                h.handle(cmd);
+            } finally {
+                latency.recordSince(LatencyStats.Stage.HANDLER, type, start);
             }
+        } else {
+            logger.warn("Unrecognized Command Forwarded From Server: " + cmd.getCommandType());
         }
-        return null;
     }
 
-    private BotManager botByGID(int gid) {
-        for (BotManager b : bots) {
-            if (b.getGID() == gid) {
-                return b;
+    /*
+     * Sharded execution.  A game scoped command is routed to shard
+     * (gid % shards.length).  A bot only changes games inside a global command,
+     * and global commands wait for every shard to drain first, so a bot's
+     * commands can never be in flight on two shards at once.
+     */
+    private CommandShard[] shards;                                  // null when running a single CommandProcessor
+    private final AtomicInteger shardBacklog = new AtomicInteger();  // Commands handed to shards but not yet finished
+    private final Object shardIdle = new Object();
+
+    private void startShards() {
+        if (processorShards > 1) {
+            shards = new CommandShard[processorShards];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new CommandShard();
+                new Thread(shards[i], "CommandShard-" + i).start();
             }
+            logger.info("CommandProcessor running " + shards.length + " shards.");
         }
-        return null;
     }
 
-    private GameManager gameByGID(int gid) {
-        for (GameManager g : games) {
-            if (g.getGID() == gid) {
-                return g;
+    // Returns the gid owning this command or -1 if it must run globally.
+    private int shardKey(Command cmd) {
+        switch (cmd.getOpcode()) {
+            case GAME_INITIALIZE:
+            case MOVE_TIMEOUT:
+            case PLAYCARDS_REPLY:
+            case TURN_REPLY:
+                BotManager b;
+                if ((b = botByBID(cmd.getBID())) != null && b.getGID() > 0) {
+                    return b.getGID();
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    private void execute(Command cmd) throws InterruptedException {
+        if (shards == null) {
+            dispatch(cmd);
+            return;
+        }
+        int gid = shardKey(cmd);
+        if (gid < 0) {
+            awaitShards();
+            dispatch(cmd);
+        } else {
+            shardBacklog.incrementAndGet();
+            shards[gid % shards.length].queue.add(cmd);
+        }
+    }
+
+    // Disconnect every bot whose messages were dropped under the DISCONNECT
+    // overload policy.  This touches global state, so the shards are drained first.
+    private void disconnectOffenders() throws InterruptedException {
+        for (OverloadGuard guard : guards) {
+            if (guard.getPolicy() != OverloadGuard.Policy.DISCONNECT) {
+                continue;
+            }
+            for (int bid : guard.drainOffenders()) {
+                if (shards != null) {
+                    awaitShards();
+                }
+                BotManager b = botByBID(bid);
+                if (b != null) {
+                    logger.warn("Disconnecting " + bid + ": " + guard.summary());
+                    disconnectionByGameServer(b, "Game server overloaded.");
+                }
             }
         }
-        return null;
     }
 
-    public class CommandProcessor extends Thread {
+    private void awaitShards() throws InterruptedException {
+        synchronized (shardIdle) {
+            while (shardBacklog.get() > 0) {
+                shardIdle.wait();
+            }
+        }
+    }
+
+    private void shardDone() {
+        if (shardBacklog.decrementAndGet() == 0) {
+            synchronized (shardIdle) {
+                shardIdle.notifyAll();
+            }
+        }
+    }
+
+    public class CommandShard extends Thread {
 
-        private Command cmd;
+        private final BlockingQueue<Command> queue = new LinkedBlockingQueue<Command>();
 
         @Override
         public void run() {
             while (true) {
                 try {
-
-                    cmd = commandQueue.take();
-                   // logger.info("Recieved command : " + cmd.getCommandType() + " From Bot : " + cmd.getBID() );
-                    if (cmd.getCommandType().equals("LOGIN_INFORM")) {
-                        login(cmd);
-                    } else if (cmd.getCommandType().equals("GAME_INITIALIZE")) {
-                        acceptChallenge(cmd);
-                    } else if (cmd.getCommandType().equals("DISCONNECT_BOT_REMOTE")) {
-                        disconnectionBySwitch(cmd);
-                    } else if (cmd.getCommandType().equals("CHALLENGE")) {
-                        challengeEvent();
-                    } else if (cmd.getCommandType().equals("TURN_REPLY")) {
-                        bullshitResponse(cmd);
-                    } else if (cmd.getCommandType().equals("SERVER_MESSAGE")) {
-                        switchMessage(cmd);
-                    } else if( cmd.getCommandType().equals( "PLAYCARDS_REPLY" ) ) {
-                        playcardsReponse(cmd);
-                    } else {
-                        logger.warn("Unrecognized Command Forwarded From Server: " + cmd.getCommandType());
+                    Command cmd = queue.take();
+                    try {
+                        dispatch(cmd);
+                    } finally {
+                        shardDone();
                     }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -491,4 +721,79 @@ public class GameServer {
             }
         }
     }
-}
\ No newline at end of file
+
+    // Timer driven commands.  Duplicates queued while the processor was behind
+    // are collapsed into a single execution at the end of the batch.
+    private boolean isHousekeeping(CommandType t) {
+        return t == CommandType.CHALLENGE;
+    }
+
+    /*
+     * The CommandProcessor drains the commandQueue in batches of up to
+     * commandBatch commands.  Housekeeping commands are deferred to the end of
+     * the batch and run once each, however many copies were queued.
+     */
+    public class CommandProcessor extends Thread {
+
+        private final List<Command> batch = new ArrayList<Command>(commandBatch);
+        private final List<Command> housekeeping = new ArrayList<Command>();
+        private final boolean[] seen = new boolean[CommandType.values().length];
+        private final BatchStats stats = new BatchStats(commandBatch);
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    batch.add(commandQueue.take());
+                    commandQueue.drainTo(batch, commandBatch - 1);
+                    disconnectOffenders();
+                    int coalesced = 0;
+                    for (Command cmd : batch) {
+                        CommandType t = cmd.getOpcode();
+                        if (isHousekeeping(t)) {
+                            if (seen[t.ordinal()]) {
+                                coalesced++;
+                            } else {
+                                seen[t.ordinal()] = true;
+                                housekeeping.add(cmd);
+                            }
+                            continue;
+                        }
+                        process(cmd);
+                    }
+                    stats.record(batch.size(), coalesced);
+                    for (Command cmd : housekeeping) {
+                        process(cmd);
+                        if (cmd.getOpcode() == CommandType.CHALLENGE) {
+                            logger.info(stats.summary());
+                            logger.info(latency.dump());
+                            if (FrameCompressor.offered()) {
+                                logger.info(FrameCompressor.summary());
+                            }
+                            for (OverloadGuard guard : guards) {
+                                logger.info(guard.summary());
+                            }
+                            stats.reset();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    batch.clear();
+                    for (Command cmd : housekeeping) {
+                        seen[cmd.getOpcode().ordinal()] = false;    //Also when the batch was cut short
+                    }
+                    housekeeping.clear();
+                }
+            }
+        }
+
+        private void process(Command cmd) throws InterruptedException {
+            try {
+                execute(cmd);
+            } catch (NullPointerException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * GatheringOutputStream collects a batch of frames for a SwitchConnection and
+ * writes it with one gathering write instead of copying everything into one
+ * buffer first.
+ *
+ * Short writes (frame headers, routing prefixes, small payloads) are appended
+ * to a direct header buffer.  An array of at least INLINE bytes, i.e. a large
+ * pre-encoded payload, is not copied: it becomes a segment of its own between
+ * the header segments around it.  flush() hands all segments to the socket
+ * at once.
+ *
+ * Arrays written as a segment are referenced until the next flush(), so the
+ * caller must not change them meanwhile.  Payload arrays cached in CmdPacks
+ * and compressor output never change; the header scratch arrays callers
+ * reuse are below INLINE and are copied.  Not thread safe; the CommandSender
+ * serialises its writers.
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class GatheringOutputStream extends OutputStream {
+    private static final int INLINE = 256;          // shorter arrays are copied into the header buffer
+    private static final int MAX_SEGMENTS = 1024;   // IOV_MAX on Linux
+
+    private final SwitchConnection conn;
+    private final ByteBuffer headers = ByteBuffer.allocateDirect(1 << 16);
+    private final ByteBuffer[] segments = new ByteBuffer[MAX_SEGMENTS];
+    private int count;
+    private int segmentStart;       // start of the open header segment
+
+    public GatheringOutputStream(SwitchConnection conn) {
+        this.conn = conn;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!headers.hasRemaining()) {
+            flush();
+        }
+        headers.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len < INLINE) {
+            if (headers.remaining() < len) {
+                flush();
+            }
+            headers.put(b, off, len);
+            return;
+        }
+        if (count >= MAX_SEGMENTS - 2) {
+            flush();
+        }
+        closeSegment();
+        segments[count++] = ByteBuffer.wrap(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        closeSegment();
+        if (count == 0) {
+            return;
+        }
+        try {
+            conn.write(segments, 0, count);
+        } finally {
+            Arrays.fill(segments, 0, count, null);
+            count = 0;
+            headers.clear();
+            segmentStart = 0;
+        }
+    }
+
+    // End the header segment written since the last one, if any.
+    private void closeSegment() {
+        int end = headers.position();
+        if (end > segmentStart) {
+            segments[count++] = headers.slice(segmentStart, end - segmentStart);
+            segmentStart = end;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * GuardedQueue wraps one of the bounded hand-off queues (commandQueue,
+ * sendQueue) and applies its OverloadGuard when the queue is full, so the
+ * producers keep calling add() exactly as they did with the old unbounded
+ * queues:
+ *
+ *   add(e)   - queues e, or applies the guard's policy: block until there is
+ *              room, or drop e.  Never throws on a full queue; returns false
+ *              if e was dropped (or the producer was interrupted).
+ *   offer(e) - never blocks; a full queue counts as a shed (or disconnect).
+ *   put(e)   - always blocks.
+ *
+ * Consumer operations are passed straight through.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class GuardedQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final BlockingQueue<E> queue;
+    private final OverloadGuard guard;
+    private final Predicate<E> lowPriority;
+    private final ToIntFunction<E> bidOf;
+
+    public GuardedQueue(BlockingQueue<E> queue, OverloadGuard guard, Predicate<E> lowPriority, ToIntFunction<E> bidOf) {
+        this.queue = queue;
+        this.guard = guard;
+        this.lowPriority = lowPriority;
+        this.bidOf = bidOf;
+    }
+
+    public OverloadGuard getGuard() {
+        return guard;
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (queue.offer(e)) {
+            return true;
+        }
+        if (!guard.mustBlock(lowPriority.test(e), bidOf.applyAsInt(e))) {
+            return false;
+        }
+        try {
+            queue.put(e);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (queue.offer(e)) {
+            return true;
+        }
+        guard.reject(lowPriority.test(e), bidOf.applyAsInt(e));
+        return false;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        queue.put(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(e, timeout, unit);
+    }
+
+    @Override
+    public E poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public E peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return queue.drainTo(c);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        return queue.drainTo(c, maxElements);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return queue.iterator();
+    }
+}
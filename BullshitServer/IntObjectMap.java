@@ -0,0 +1,160 @@
+/*
+ * IntObjectMap is an open-addressing hash map from primitive int keys to
+ * objects.  It is used for the bot (bid) and game (gid) registries, which are
+ * consulted on nearly every command.  Keys are stored in an int[] so there is
+ * no boxing, lookups and removals are O(1), and removal uses backward-shift
+ * deletion so no tombstones accumulate as bots log in and out.
+ *
+ * All methods are synchronized: CommandShards and the router may touch the
+ * registries concurrently.  Null values are not allowed; a null slot marks an
+ * empty bucket.
+ */
+
+package cw_generic;
+
+import java.util.*;
+
+public class IntObjectMap<V> {
+    private int[] keys;
+    private Object[] vals;
+    private int size;
+    private int mask;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(int expected) {
+        int cap = 16;
+        while (cap < expected * 2) {
+            cap <<= 1;
+        }
+        keys = new int[cap];
+        vals = new Object[cap];
+        mask = cap - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V get(int key) {
+        int i = hash(key) & mask;
+        Object v;
+        while ((v = vals[i]) != null) {
+            if (keys[i] == key) {
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public synchronized boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    // Returns the previous value for key, or null.
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("IntObjectMap does not accept null values");
+        }
+        int i = hash(key) & mask;
+        Object v;
+        while ((v = vals[i]) != null) {
+            if (keys[i] == key) {
+                vals[i] = value;
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        vals[i] = value;
+        if (++size * 2 > vals.length) {
+            resize(vals.length << 1);
+        }
+        return null;
+    }
+
+    // Returns the removed value, or null if key was not present.
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        int i = hash(key) & mask;
+        Object v;
+        while ((v = vals[i]) != null) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(vals, null);
+        size = 0;
+    }
+
+    // Snapshot of all values.  Callers may modify the map while iterating it.
+    @SuppressWarnings("unchecked")
+    public synchronized List<V> values() {
+        List<V> list = new ArrayList<V>(size);
+        for (Object v : vals) {
+            if (v != null) {
+                list.add((V) v);
+            }
+        }
+        return list;
+    }
+
+    // Close the gap at slot i by pulling back any entry whose probe sequence
+    // passed through it.
+    private void shiftBack(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (vals[j] == null) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            // Move j into i unless its home slot lies cyclically in (i, j].
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                vals[i] = vals[j];
+                i = j;
+            }
+        }
+        vals[i] = null;
+    }
+
+    private void resize(int cap) {
+        int[] oldKeys = keys;
+        Object[] oldVals = vals;
+        keys = new int[cap];
+        vals = new Object[cap];
+        mask = cap - 1;
+        for (int k = 0; k < oldVals.length; k++) {
+            if (oldVals[k] != null) {
+                int i = hash(oldKeys[k]) & mask;
+                while (vals[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[k];
+                vals[i] = oldVals[k];
+            }
+        }
+    }
+}
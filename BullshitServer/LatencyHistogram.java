@@ -0,0 +1,98 @@
+/*
+ * LatencyHistogram is a small fixed size, log-linear histogram in the style of
+ * HdrHistogram.  Every power of two range of values is split into 32 linear
+ * sub-buckets, so any recorded value is reported to within ~3% regardless of
+ * its magnitude, from nanoseconds up to hours.  Recording is a couple of shifts
+ * and one atomic increment and never allocates, so it is safe on the hot path
+ * of the CommandProcessor and CommandSender.
+ *
+ * Values are nanoseconds.  Percentiles report the highest value equivalent to
+ * the bucket the percentile falls in (as HdrHistogram does), capped at the
+ * largest value actually recorded.
+ */
+
+package cw_generic;
+
+import java.util.concurrent.atomic.*;
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        total.incrementAndGet();
+        sum.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = total.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    // Value (nanoseconds) at or below which the given percentage of recorded
+    // values fall.  Returns 0 for an empty histogram.
+    public long getPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // Values below SUB_COUNT get a bucket each.  Above that, a value whose
+    // highest set bit is e lands in row (e - SUB_BITS + 1), column given by
+    // the SUB_BITS bits below the highest set bit.
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int shift = e - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((v >>> shift) - SUB_COUNT);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long lowest = (long) (index % SUB_COUNT + SUB_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * An OverloadGuard decides what happens to a message that does not fit in one
+ * of the game server's bounded queues, and counts every such event.  Each
+ * queue has its own guard and policy:
+ *
+ *   BLOCK      - the producer waits until there is room (old behaviour, minus
+ *                the unbounded growth).
+ *   SHED       - low priority messages (SERVER_MESSAGE, CHALLENGE, ...) are
+ *                dropped; everything else blocks.  Default.
+ *   DISCONNECT - a message belonging to a bot (or human) is dropped and that
+ *                bot is marked as an offender; the CommandProcessor then
+ *                disconnects it.  Messages without an owner fall back to SHED.
+ *
+ * Blocking is safe because every queue always has a consumer: while the
+ * switch link is down the lane's CommandSender keeps draining the sendQueue
+ * into its ReplayBuffer, so the CommandProcessor never waits on a dead link
+ * and the SwitchListener is never stuck behind it when it should reconnect.
+ *
+ * Structures that cannot block their producer (the web output mailboxes)
+ * treat BLOCK as SHED: the only thing that drains them is the browser polling.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class OverloadGuard {
+
+    public enum Policy { BLOCK, SHED, DISCONNECT }
+
+    private final String name;
+    private final Policy policy;
+    private final int capacity;
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final Set<Integer> offenders = ConcurrentHashMap.newKeySet();
+
+    public OverloadGuard(String name, Policy policy, int capacity) {
+        this.name = name;
+        this.policy = policy;
+        this.capacity = capacity;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // Bound for structures which are not fixed size queues (the output mailboxes).
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // A message did not fit.  Returns true if the producer should block until
+    // it does, false if it has been dropped.
+    public boolean mustBlock(boolean lowPriority, int bid) {
+        if (policy == Policy.DISCONNECT && hasOwner(bid)) {
+            markOffender(bid);
+            return false;
+        }
+        if (policy != Policy.BLOCK && lowPriority) {
+            shed.incrementAndGet();
+            return false;
+        }
+        blocked.incrementAndGet();
+        return true;
+    }
+
+    // A message was dropped by a producer that cannot block.
+    public void reject(boolean lowPriority, int bid) {
+        if (policy == Policy.DISCONNECT && hasOwner(bid)) {
+            markOffender(bid);
+        } else {
+            shed.incrementAndGet();
+        }
+    }
+
+    // Bots and humans whose messages were dropped under the DISCONNECT policy.
+    public List<Integer> drainOffenders() {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Iterator<Integer> it = offenders.iterator(); it.hasNext();) {
+            list.add(it.next());
+            it.remove();
+        }
+        return list;
+    }
+
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    public long getShed() {
+        return shed.get();
+    }
+
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    public String summary() {
+        return name + " [" + policy + "]: " + blocked.get() + " blocked, " + shed.get() + " shed, "
+                + disconnected.get() + " dropped for disconnect";
+    }
+
+    // bid 0 is the switch itself and -1 means the command carried no bid.
+    private static boolean hasOwner(int bid) {
+        return bid != 0 && bid != -1;
+    }
+
+    private void markOffender(int bid) {
+        disconnected.incrementAndGet();
+        offenders.add(bid);
+    }
+}
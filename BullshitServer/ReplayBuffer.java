@@ -0,0 +1,95 @@
+/*
+ * ReplayBuffer holds the CmdPacks a CommandSender has written to the switch
+ * until the switch confirms them, so that a dropped connection does not lose
+ * them.  One buffer belongs to each switch lane and outlives the connections
+ * (and CommandSenders) on that lane.
+ *
+ * Every pack gets the next sequence number when it is added.  Numbers count
+ * data frames only (control frames such as SERVER_PING are not numbered) and
+ * keep increasing across reconnects, within a stream named by getStream()
+ * that is unique to this buffer.  When the switch acknowledges a number,
+ * that pack and everything before it are released.  Whatever is still held
+ * when the connection drops is written again, in order, by the next sender.
+ *
+ * The buffer is bounded by -Dcw.replayCapacity (default 65536 packs).  If the
+ * switch stops acknowledging for that long the oldest packs are given up on
+ * and counted in getDropped().
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ReplayBuffer {
+    private static final int defaultCapacity = Integer.getInteger("cw.replayCapacity", 65536);
+
+    private final ArrayDeque<CmdPack> packs = new ArrayDeque<CmdPack>();
+    private final int capacity;
+    private final String stream = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    private long firstSeq = 1;      // sequence number of packs.peekFirst()
+    private long replayed;
+    private long dropped;
+
+    public ReplayBuffer() {
+        this(defaultCapacity);
+    }
+
+    public ReplayBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Hold pack until it is acknowledged; returns its sequence number.
+    public synchronized long add(CmdPack pack) {
+        if (packs.size() >= capacity) {
+            packs.pollFirst();
+            firstSeq++;
+            dropped++;
+        }
+        packs.addLast(pack);
+        return firstSeq + packs.size() - 1;
+    }
+
+    // The switch has everything up to and including seq.
+    public synchronized void ack(long seq) {
+        while (!packs.isEmpty() && firstSeq <= seq) {
+            packs.pollFirst();
+            firstSeq++;
+        }
+    }
+
+    // Release everything held, e.g. once written to a switch that does not
+    // acknowledge.
+    public synchronized void releaseAll() {
+        firstSeq += packs.size();
+        packs.clear();
+    }
+
+    public String getStream() {
+        return stream;
+    }
+
+    // Sequence number of the oldest unacknowledged pack (or of the next pack
+    // to be added if there is none).
+    public synchronized long getFirstSeq() {
+        return firstSeq;
+    }
+
+    // The unacknowledged packs, oldest first, for writing again.
+    public synchronized List<CmdPack> unacknowledged() {
+        replayed += packs.size();
+        return new ArrayList<CmdPack>(packs);
+    }
+
+    public synchronized int size() {
+        return packs.size();
+    }
+
+    public synchronized long getReplayed() {
+        return replayed;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
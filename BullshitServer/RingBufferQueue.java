@@ -0,0 +1,247 @@
+/*
+ * RingBufferQueue is a bounded, preallocated multi-producer/single-consumer
+ * queue used for the commandQueue and the sendQueue.  Producers (the
+ * SwitchListener, the Thrift interface, the timers and the CommandProcessor)
+ * claim a slot with a single CAS and publish it by bumping the slot's
+ * sequence number, so no node is allocated and no lock is taken per message.
+ * Exactly one thread may consume: the CommandProcessor for the commandQueue
+ * and the CommandSender for the sendQueue.
+ *
+ * The class implements BlockingQueue so it drops in for the LinkedBlockingQueue
+ * it replaces.  Note that, unlike the old unbounded queues, add() throws an
+ * IllegalStateException when the ring is full; put() waits for space.
+ * iterator() returns a snapshot, so it is safe from any thread.
+ *
+ * Only the ring's slots are reused.  The Commands and CmdPacks passing
+ * through it are still allocated per message and left to the GC: handlers,
+ * game shards, timers and the ReplayBuffer keep references to them after they
+ * leave the queue, so recycling them would need ownership tracking that the
+ * handlers do not have.
+ *
+ * The WaitStrategy decides what a thread does while the ring is empty (the
+ * consumer) or full (a producer):
+ *   SPIN  - the consumer busy spins.  Lowest latency, burns a core while
+ *           idle.  Producers blocked on a full ring yield instead, so they
+ *           do not starve the consumer they are waiting on.
+ *   YIELD - Thread.yield() between checks.
+ *   PARK  - the consumer parks and is unparked by the next producer; producers
+ *           back off with short parks.  Default.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    public enum WaitStrategy { SPIN, YIELD, PARK }
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;   // slot i is free for claim t when sequence == t, full when sequence == t + 1
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();  // next position claimed by a producer
+    private volatile long head;                          // next position read by the consumer
+    private volatile Thread waitingConsumer;
+    private final WaitStrategy waitStrategy;
+
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        int cap = 2;
+        while (cap < capacity) {
+            cap <<= 1;
+        }
+        this.buffer = new Object[cap];
+        this.sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = cap - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // =======PRODUCERS=======
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long t = tail.get();
+            int idx = (int) t & mask;
+            long dif = sequences.get(idx) - t;
+            if (dif == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    buffer[idx] = e;
+                    sequences.set(idx, t + 1);  // publish
+                    Thread c = waitingConsumer;
+                    if (c != null) {
+                        LockSupport.unpark(c);
+                    }
+                    return true;
+                }
+            } else if (dif < 0) {
+                return false;  // full
+            }
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            awaitSpace(PRODUCER_PARK_NANOS);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            awaitSpace(Math.min(remaining, PRODUCER_PARK_NANOS));
+        }
+        return true;
+    }
+
+    // =======CONSUMER=======
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head;
+        int idx = (int) h & mask;
+        if (sequences.get(idx) != h + 1) {
+            return null;  // empty, or the producer has not published yet
+        }
+        E e = (E) buffer[idx];
+        buffer[idx] = null;
+        sequences.set(idx, h + buffer.length);  // free the slot for the next lap
+        head = h + 1;
+        return e;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head;
+        int idx = (int) h & mask;
+        return (sequences.get(idx) == h + 1) ? (E) buffer[idx] : null;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            awaitItem(MAX_PARK_NANOS);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            awaitItem(Math.min(remaining, MAX_PARK_NANOS));
+        }
+        return e;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    private void awaitItem(long parkNanos) throws InterruptedException {
+        if (waitStrategy == WaitStrategy.PARK) {
+            waitingConsumer = Thread.currentThread();
+            // Re-check after advertising ourselves so a concurrent offer() cannot be missed.
+            if (peek() == null) {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        } else {
+            if (waitStrategy == WaitStrategy.SPIN) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void awaitSpace(long parkNanos) throws InterruptedException {
+        if (waitStrategy == WaitStrategy.PARK) {
+            LockSupport.parkNanos(this, parkNanos);
+        } else {
+            Thread.yield();
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    // =======QUERIES=======
+    @Override
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, buffer.length));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return buffer.length - size();
+    }
+
+    // A snapshot of the elements published at the time of the call, oldest
+    // first, for monitoring and debugging (contains(), toString(), ...).  It
+    // is weakly consistent: elements taken or added meanwhile may or may not
+    // appear, and it does not support remove().
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>(size());
+        long t = tail.get();
+        for (long p = Math.max(head, t - buffer.length); p < t; p++) {
+            int idx = (int) p & mask;
+            if (sequences.get(idx) != p + 1) {
+                continue;   // taken already, or not yet published
+            }
+            Object e = buffer[idx];
+            if (e != null && sequences.get(idx) == p + 1) {
+                snapshot.add((E) e);     // still the same lap: the element was not taken meanwhile
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
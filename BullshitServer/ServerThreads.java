@@ -0,0 +1,69 @@
+/*
+ * ServerThreads starts the game server's I/O bound threads: the SwitchListener,
+ * the CommandSender and (for connectFour) the Thrift connection handlers.
+ * By default these are ordinary platform threads.  Starting the server with
+ * -Dcw.virtualThreads=true runs them on virtual threads instead, so a blocked
+ * socket read or a browser connection parked in fetchResponse costs a small
+ * heap object rather than an OS thread and its stack.
+ *
+ * The server builds and runs on Java 17.  Virtual threads need Java 21, so
+ * they are looked up by reflection; on an older JVM the option is reported
+ * once and platform threads are used.
+ *
+ * The CPU bound loops (CommandProcessor, CommandShards, TimerWheel) always
+ * stay on platform threads.
+ */
+
+package cw_generic;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+
+public class ServerThreads {
+    private static final Logger logger = Logger.getLogger(ServerThreads.class);
+    private static final ThreadFactory virtualFactory = Boolean.getBoolean("cw.virtualThreads") ? lookupVirtual() : null;
+
+    public static boolean isVirtual() {
+        return virtualFactory != null;
+    }
+
+    // Start r on a new thread of the configured kind and return that thread.
+    public static Thread start(Runnable r, String name) {
+        Thread t;
+        if (virtualFactory != null) {
+            t = virtualFactory.newThread(r);
+            t.setName(name);
+        } else {
+            t = new Thread(r, name);
+        }
+        t.start();
+        return t;
+    }
+
+    // Executor running each task on its own virtual thread, or null when
+    // virtual threads are disabled and the caller should keep its default.
+    public static ExecutorService newPerTaskExecutor() {
+        if (virtualFactory == null) {
+            return null;
+        }
+        try {
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, virtualFactory);
+        } catch (ReflectiveOperationException e) {
+            return null;    // Not reached: the factory was found on the same JVM.
+        }
+    }
+
+    // Thread.ofVirtual().factory(), or null before Java 21.
+    private static ThreadFactory lookupVirtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("cw.virtualThreads needs Java 21 (running " + System.getProperty("java.version")
+                    + "), using platform threads.");
+            return null;
+        }
+    }
+}
@@ -49,6 +49,7 @@ public class SqlConnector {
         
         int rank = -1;
         ConnectToDb();
+        if( m_connection == null ) return rank;   // No database: the bot plays unranked
        
         Statement stmt = null;
         ResultSet rs = null;
@@ -95,6 +96,7 @@ public class SqlConnector {
     public void SaveGame( int Winner, int Bot1, int Bot2, int Bot3, int Bot4, String GameHistory )
     {
         ConnectToDb();
+        if( m_connection == null ) return;
 
         Statement stmt = null;
 
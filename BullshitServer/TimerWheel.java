@@ -0,0 +1,258 @@
+/*
+ * The TimerWheel is the single scheduler behind every timer in the game
+ * server: CHALLENGE ticks, output expiry, switch pings and the per-move
+ * deadlines armed whenever a bot is sent a command with an actionTime.
+ *
+ * It is a hierarchical timing wheel with four levels of 256 slots.  Level 0
+ * holds timeouts due within 256 ticks, level 1 within 2^16 ticks and so on;
+ * whenever the lower level wraps, the matching slot of the next level is
+ * cascaded down.  Each slot is a doubly linked list, so scheduling and
+ * cancelling a timeout are O(1) no matter how many are pending.  With the
+ * default 10ms tick the wheel covers roughly 497 days.
+ *
+ * Expired tasks run on the TimerWheel thread and must be short: every task in
+ * the game server simply hands a command to one of the queues.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import org.apache.log4j.Logger;
+
+public class TimerWheel extends Thread {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final Logger logger;
+    private final long tickNanos;
+    private final long tickMillis;
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];   // sentinel heads
+    private final long start = System.nanoTime();   // tick 0
+    private long currentTick;     // last tick processed
+    private int pending;
+    private volatile boolean stop;
+
+    public class Timeout {
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final Runnable task;
+        private final long periodTicks;   // 0 for one-shot timeouts
+        private long deadline;
+        private Timeout prev, next;
+        private volatile int state = PENDING;
+
+        private Timeout(Runnable task, long deadline, long periodTicks) {
+            this.task = task;
+            this.deadline = deadline;
+            this.periodTicks = periodTicks;
+        }
+
+        // Cancel the timeout.  Returns false if it already fired or was cancelled.
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (state != PENDING) {
+                    return false;
+                }
+                state = CANCELLED;
+                if (prev != null) {
+                    unlink(this);
+                }
+                return true;
+            }
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+    }
+
+    public TimerWheel(long tickMillis, Logger logger) {
+        this.logger = logger;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.tickNanos = this.tickMillis * 1000000L;
+        for (int l = 0; l < LEVELS; l++) {
+            for (int s = 0; s < SLOTS; s++) {
+                Timeout head = new Timeout(null, 0, 0);
+                head.prev = head;
+                head.next = head;
+                wheel[l][s] = head;
+            }
+        }
+    }
+
+    // Made a daemon here rather than in the constructor, so no overridable
+    // Thread method runs on a partly constructed wheel.
+    @Override
+    public synchronized void start() {
+        setDaemon(true);
+        super.start();
+    }
+
+    // Run task once, delayMillis from now.
+    public Timeout schedule(Runnable task, long delayMillis) {
+        return add(task, delayMillis, 0);
+    }
+
+    // Run task every periodMillis, starting periodMillis from now.
+    public Timeout schedulePeriodic(Runnable task, long periodMillis) {
+        return add(task, periodMillis, Math.max(1, ticks(periodMillis)));
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    public void stopThread() {
+        this.stop = true;
+        this.interrupt();
+    }
+
+    private long ticks(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    private synchronized Timeout add(Runnable task, long delayMillis, long periodTicks) {
+        // Measure from the clock rather than currentTick, which lags when the
+        // wheel thread is starved, and round up so a timeout never fires early.
+        long now = (System.nanoTime() - start) / tickNanos;
+        Timeout t = new Timeout(task, Math.max(currentTick, now) + ticks(delayMillis) + 1, periodTicks);
+        insert(t);
+        pending++;
+        return t;
+    }
+
+    // Place t in the slot matching its distance from currentTick.
+    private void insert(Timeout t) {
+        long delta = t.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        long when = t.deadline;
+        if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+            when = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;   // beyond the wheel: park in the last slot
+        }
+        Timeout head = wheel[level][(int) (when >>> (SLOT_BITS * level)) & SLOT_MASK];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+    }
+
+    private void unlink(Timeout t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        pending--;
+    }
+
+    // Advance one tick and collect every timeout now due.
+    private synchronized void advance(List<Timeout> due) {
+        long tick = ++currentTick;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            cascade(wheel[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK]);
+        }
+        Timeout head = wheel[0][(int) tick & SLOT_MASK];
+        Timeout t = head.next;
+        while (t != head) {
+            Timeout next = t.next;
+            t.prev.next = next;
+            next.prev = t.prev;
+            if (t.deadline <= tick) {
+                t.prev = null;
+                t.next = null;
+                pending--;
+                due.add(t);
+            } else {
+                insert(t);
+            }
+            t = next;
+        }
+    }
+
+    private void cascade(Timeout head) {
+        Timeout t = head.next;
+        head.next = head;
+        head.prev = head;
+        while (t != head) {
+            Timeout next = t.next;
+            insert(t);
+            t = next;
+        }
+    }
+
+    private synchronized void reschedule(Timeout t) {
+        if (t.state == Timeout.PENDING) {
+            t.deadline += t.periodTicks;
+            if (t.deadline <= currentTick) {
+                t.deadline = currentTick + 1;   // fell behind; do not fire a burst
+            }
+            insert(t);
+            pending++;
+        }
+    }
+
+    @Override
+    public void run() {
+        setName("TimerWheel");
+        logger.info("TimerWheel started (" + tickMillis + "ms tick)");
+        List<Timeout> due = new ArrayList<Timeout>();
+        long processed = 0;
+        while (!stop) {
+            try {
+                long elapsed = (System.nanoTime() - start) / tickNanos;
+                if (processed >= elapsed) {
+                    long sleepNanos = start + (processed + 1) * tickNanos - System.nanoTime();
+                    if (sleepNanos > 0) {
+                        Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+                    }
+                    continue;
+                }
+                while (processed < elapsed) {
+                    advance(due);
+                    processed++;
+                }
+                for (Timeout t : due) {
+                    fire(t);
+                }
+                due.clear();
+            } catch (InterruptedException e) {
+                if (!stop) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void fire(Timeout t) {
+        if (t.periodTicks == 0) {
+            synchronized (this) {
+                if (t.state != Timeout.PENDING) {
+                    return;
+                }
+                t.state = Timeout.EXPIRED;
+            }
+        } else if (t.state != Timeout.PENDING) {
+            return;
+        }
+        try {
+            t.task.run();
+        } catch (Exception e) {
+            logger.error("TimerWheel task failed", e);
+        }
+        if (t.periodTicks > 0) {
+            reschedule(t);
+        }
+    }
+}
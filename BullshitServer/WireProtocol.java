@@ -0,0 +1,288 @@
+/*
+ * WireProtocol describes the two encodings spoken on the switch link.
+ *
+ * TEXT (always supported):
+ *
+ *     TYPE<<metadata\n                  routed packs: TYPE<<bid:actionTime:metadata\n
+ *
+ * BINARY1 (optional, -Dcw.wireProtocol=binary):
+ *
+ *     int length | byte opcode | int bid | int actionTime | [type] | payload
+ *
+ *   length counts every byte after the length field.  opcode indexes OPCODES;
+ *   opcode 0 means the type is not in the table and follows as a one byte
+ *   length and its ASCII bytes.  payload is the UTF-8 metadata without the
+ *   bid/actionTime prefix.  All ints are big-endian.  From switch to server,
+ *   bid is the bot the command came from (-1 for none) and actionTime is
+ *   unused; the server rebuilds the text metadata as bid:payload.
+ *
+ *   An opcode with the COMPRESSED bit set carries a deflated payload (see
+ *   FrameCompressor).  An opcode with the MULTICAST bit set is sent to
+ *   several bots: bid is the number of targets n and the payload starts with
+ *   n ints, the target bids, followed by the (possibly compressed) metadata.
+ *
+ * MULTICAST1 (optional, -Dcw.multicast=true, either encoding):
+ *
+ *   One pack with the same command for several bots is sent as one frame;
+ *   in text its bid is a comma separated list (TYPE<<b1,b2:actionTime:meta).
+ *   Without it the CommandSender sends one frame per target.
+ *
+ * ACK1 (optional, -Dcw.switchReplay=true, either encoding):
+ *
+ *   The server numbers its data frames (everything but the control frames
+ *   REGISTER, PROTOCOL, RESUME and SERVER_PING) 1, 2, 3... across reconnects
+ *   and keeps them in a ReplayBuffer.  The switch sends ACK<<seq once it has
+ *   every frame up to seq.  After each (re)connect the server sends
+ *   RESUME<<stream:seq, meaning its next data frame is number seq, followed
+ *   by every frame not yet acknowledged; the switch drops numbers it already
+ *   has.  stream names the numbering (one per connection pool lane, new on
+ *   every server start), since lanes share the server's REGISTER identity.
+ *
+ * Negotiation happens during REGISTER.  A server offering optional features
+ * appends ":" and a comma separated list of them (BINARY1, compression, ACK1,
+ * MULTICAST1)
+ * to its REGISTER metadata.  A switch that understands the offer answers with
+ * the text line PROTOCOL<<feature[,feature...] listing what it accepted; if
+ * that includes BINARY1 it sends binary frames from then on.  The server
+ * answers with the same line and, for BINARY1, switches its own output.  A
+ * switch that ignores the offer never answers, and after
+ * -Dcw.negotiateTimeout ms (default 2000) the server carries on with text and
+ * no acknowledgements.
+ *
+ * OPCODES is shared with the switch: only ever append to it.
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class WireProtocol {
+
+    public static final String BINARY = "BINARY1";
+    public static final String REPLAY = "ACK1";
+    public static final String MULTICAST_FEATURE = "MULTICAST1";
+    public static final String PROTOCOL = "PROTOCOL";
+    public static final String ACK = "ACK";
+    public static final String RESUME = "RESUME";
+    public static final int HEADER = 13;     // length + opcode + bid + actionTime
+    public static final int COMPRESSED = 0x80;   // opcode flag: payload is deflated
+    public static final int MULTICAST = 0x40;    // opcode flag: payload starts with the target bids
+    public static final int OPCODE = 0x3f;       // opcode without its flags
+
+    private static final boolean offerBinary = "binary".equalsIgnoreCase(System.getProperty("cw.wireProtocol", "text"));
+    private static final boolean offerReplay = Boolean.getBoolean("cw.switchReplay");
+    private static final boolean offerMulticast = Boolean.getBoolean("cw.multicast");
+
+    private static final String[] OPCODES = {
+        null,                       // 0: type spelled out in the frame
+        "LOGIN_INFORM",
+        "GAME_INITIALIZE",
+        "ACTION_REQUEST",
+        "ACTION_REPLY",
+        "DISCONNECT_BOT_REMOTE",
+        "SERVER_MESSAGE",
+        "SERVER_PING",
+        "GAME_ABORT",
+        "GAME_REPORT",
+        "EXECUTE_PROCEDURE",
+        "SET_MODE",
+        "GAME_ORDER",
+        "CARD_MESSAGE",
+        "PLAYCARDS_REQUEST",
+        "PLAYCARDS_REPLY",
+        "TURN_SUMMARY",
+        "TURN_REPLY",
+        "BULLSHIT_RESULT",
+        "GAME_WINNER",
+        "ACK",
+        "RESUME",
+    };
+
+    private static final Map<String, Integer> byType = new HashMap<String, Integer>();
+    private static final Map<String, byte[]> typeBytes = new ConcurrentHashMap<String, byte[]>();
+
+    static {
+        for (int i = 1; i < OPCODES.length; i++) {
+            byType.put(OPCODES[i], i);
+        }
+    }
+
+    // True if this server should offer BINARY1 in its REGISTER command.
+    public static boolean offerBinary() {
+        return offerBinary;
+    }
+
+    // True if this server should offer ACK1 in its REGISTER command.
+    public static boolean offerReplay() {
+        return offerReplay;
+    }
+
+    // True if this server should offer MULTICAST1 in its REGISTER command.
+    public static boolean offerMulticast() {
+        return offerMulticast;
+    }
+
+    // True if anything is offered, i.e. the switch may answer with PROTOCOL.
+    public static boolean offersFeatures() {
+        return offerBinary || offerReplay || offerMulticast;
+    }
+
+    public static String registerMetaData(String identity) {
+        List<String> features = new ArrayList<String>();
+        if (offerBinary) {
+            features.add(BINARY);
+            if (FrameCompressor.offered()) {
+                features.add(FrameCompressor.feature());
+            }
+        }
+        if (offerReplay) {
+            features.add(REPLAY);
+        }
+        if (offerMulticast) {
+            features.add(MULTICAST_FEATURE);
+        }
+        return features.isEmpty() ? identity : identity + ":" + String.join(",", features);
+    }
+
+    // True for the frames that are part of the link itself rather than data,
+    // and so are not numbered for ACK1.
+    public static boolean isControl(String type) {
+        return type.equals("REGISTER") || type.equals(PROTOCOL) || type.equals(RESUME) || type.equals("SERVER_PING");
+    }
+
+    // True if the comma separated protocol list contains feature.
+    public static boolean hasFeature(String protocol, String feature) {
+        for (String f : protocol.split(",")) {
+            if (f.equals(feature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static int opcodeOf(String type) {
+        Integer op = byType.get(type);
+        return (op == null) ? 0 : op;
+    }
+
+    // Command type for a table opcode, or null for 0 / unknown opcodes.  The
+    // flags are ignored.
+    public static String typeOf(int opcode) {
+        opcode &= OPCODE;
+        return (opcode > 0 && opcode < OPCODES.length) ? OPCODES[opcode] : null;
+    }
+
+    // TYPE<<[bid:actionTime:]metadata\n
+    public static void writeText(OutputStream out, CmdPack pack) throws IOException {
+        out.write(typeBytes(String.valueOf(pack.cmd.getCommandType())));
+        out.write('<');
+        out.write('<');
+        if (pack.isMulticast()) {
+            int[] bids = pack.getBIDs();
+            for (int i = 0; i < bids.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeDecimal(out, bids[i]);
+            }
+            out.write(':');
+            writeDecimal(out, pack.getActionTime());
+            out.write(':');
+        } else if (pack.isRouted()) {
+            writeDecimal(out, pack.getBID());
+            out.write(':');
+            writeDecimal(out, pack.getActionTime());
+            out.write(':');
+        }
+        out.write(pack.getPayload());
+        out.write('\n');
+    }
+
+    public static void writeBinary(OutputStream out, CmdPack pack, byte[] header, FrameCompressor compressor) throws IOException {
+        boolean routed = pack.isRouted();
+        writeBinary(out, String.valueOf(pack.cmd.getCommandType()), routed ? pack.getBID() : 0,
+                routed ? (int) pack.getActionTime() : 0, pack.isMulticast() ? pack.getBIDs() : null,
+                pack.getPayload(), header, compressor);
+    }
+
+    // header is a scratch array of at least HEADER bytes.  compressor is null
+    // unless compression was negotiated.
+    public static void writeBinary(OutputStream out, String type, int bid, int actionTime, String payload, byte[] header,
+            FrameCompressor compressor) throws IOException {
+        writeBinary(out, type, bid, actionTime, null, payload.getBytes(StandardCharsets.UTF_8), header, compressor);
+    }
+
+    // targets is null for a frame to a single bid.
+    private static void writeBinary(OutputStream out, String type, int bid, int actionTime, int[] targets, byte[] payloadBytes,
+            byte[] header, FrameCompressor compressor) throws IOException {
+        int opcode = opcodeOf(type);
+        byte[] typeBytes = (opcode == 0) ? typeBytes(type) : null;
+        byte[] compressed = (compressor == null) ? null : compressor.compress(payloadBytes);
+        if (compressed != null) {
+            payloadBytes = compressed;
+            opcode |= COMPRESSED;
+        }
+        int targetBytes = 0;
+        if (targets != null) {
+            opcode |= MULTICAST;
+            bid = targets.length;
+            targetBytes = 4 * targets.length;
+        }
+        int length = HEADER - 4 + targetBytes + payloadBytes.length + ((typeBytes == null) ? 0 : 1 + typeBytes.length);
+        putInt(header, 0, length);
+        header[4] = (byte) opcode;
+        putInt(header, 5, bid);
+        putInt(header, 9, actionTime);
+        out.write(header, 0, HEADER);
+        if (typeBytes != null) {
+            out.write(typeBytes.length);
+            out.write(typeBytes);
+        }
+        if (targets != null) {
+            for (int t : targets) {
+                putInt(header, 0, t);
+                out.write(header, 0, 4);
+            }
+        }
+        out.write(payloadBytes);
+    }
+
+    // The ASCII bytes of a command type, cached; do not modify them.
+    private static byte[] typeBytes(String type) {
+        byte[] b = typeBytes.get(type);
+        if (b == null) {
+            b = type.getBytes(StandardCharsets.US_ASCII);
+            typeBytes.put(type, b);
+        }
+        return b;
+    }
+
+    // Decimal digits of v, without going through a String.
+    private static void writeDecimal(OutputStream out, long v) throws IOException {
+        if (v < 0) {
+            out.write('-');
+            if (v == Long.MIN_VALUE) {
+                out.write("9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            v = -v;
+        }
+        long div = 1;
+        while (div <= v / 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            out.write((int) ('0' + (v / div) % 10));
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,79 @@
+package cw_generic;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+public class CommandSenderTest {
+
+    // A batch big enough that GatheringOutputStream flushes part of it on its
+    // own, written to a switch that has reset the connection.  Every frame of
+    // the batch, multicasts expanded, must be left for the next sender, and
+    // so must everything queued after the failure, until the sender is
+    // stopped.  Pings are not replayed.
+    @Test
+    public void failedBatchIsKeptForReplay() throws Exception {
+        char[] text = new char[1000];
+        Arrays.fill(text, 'x');
+        String payload = new String(text);
+        BlockingQueue<CmdPack> sendQueue = new LinkedBlockingQueue<CmdPack>();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 1; i <= 700; i++) {
+            if (i % 7 == 0) {
+                int[] bids = {i, i + 1000, i + 2000};
+                sendQueue.add(new CmdPack(new Command("GAME_REPORT", payload), bids, 0));
+                for (int bid : bids) {
+                    expected.add(bid);
+                }
+            } else {
+                sendQueue.add(new CmdPack(new Command("ACTION_REQUEST", payload), i, 0));
+                expected.add(i);
+            }
+        }
+
+        ReplayBuffer replay = new ReplayBuffer();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SwitchConnection conn = SwitchConnection.open(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+            try (SocketChannel peer = server.accept()) {
+                peer.socket().setSoLinger(true, 0);     // close with a reset
+            }
+            Thread.sleep(100);
+            CommandSender cs = new CommandSender(conn, sendQueue, replay);
+            cs.start();
+            awaitEmpty(sendQueue);
+            sendQueue.add(new CmdPack(new Command("SERVER_PING", "null")));
+            for (int i = 701; i <= 703; i++) {
+                sendQueue.add(new CmdPack(new Command("ACTION_REQUEST", payload), i, 0));
+                expected.add(i);
+            }
+            awaitEmpty(sendQueue);
+            assertTrue("sender stopped draining after the connection failed", cs.isAlive());
+            cs.stopThread();
+            cs.interrupt();
+            cs.join(10000);
+            assertFalse("sender still running after being stopped", cs.isAlive());
+            conn.close();
+        }
+
+        List<Integer> held = new ArrayList<Integer>();
+        for (CmdPack pack : replay.unacknowledged()) {
+            held.add(pack.getBID());
+        }
+        assertEquals("frames held for replay", expected.size(), held.size());
+        assertEquals(expected, held);
+    }
+
+    private static void awaitEmpty(BlockingQueue<CmdPack> queue) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!queue.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("sender stopped draining the sendQueue", queue.isEmpty());
+        Thread.sleep(100);      // let it finish the batch it took
+    }
+}
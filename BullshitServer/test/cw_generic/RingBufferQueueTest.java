@@ -0,0 +1,40 @@
+package cw_generic;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+
+    // The iterator sees what is queued, oldest first, also after the ring
+    // has wrapped, and does not consume anything.
+    @Test
+    public void iteratorIsSnapshot() {
+        RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(4, RingBufferQueue.WaitStrategy.PARK);
+        assertFalse(q.iterator().hasNext());
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(q.offer(i));
+        }
+        assertFalse(q.offer(5));
+        assertEquals(Integer.valueOf(1), q.poll());
+        assertEquals(Integer.valueOf(2), q.poll());
+        assertTrue(q.offer(5));
+        assertTrue(q.offer(6));
+
+        assertEquals(Arrays.asList(3, 4, 5, 6), new ArrayList<Integer>(q));
+        assertTrue(q.contains(5));
+        assertEquals("[3, 4, 5, 6]", q.toString());
+        assertEquals(4, q.size());
+        assertEquals(Integer.valueOf(3), q.poll());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void iteratorIsReadOnly() {
+        RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(4, RingBufferQueue.WaitStrategy.PARK);
+        q.offer(1);
+        Iterator<Integer> it = q.iterator();
+        it.next();
+        it.remove();
+    }
+}
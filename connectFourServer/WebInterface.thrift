@@ -0,0 +1,16 @@
+# Thrift service between the browser client and the Connect Four game server.
+# connectFourServer/gen/WebInterface.java is generated from this file:
+#
+#     thrift --gen java -out . connectFourServer/WebInterface.thrift
+#
+# with the Thrift version pinned in pom.xml.
+
+namespace java connectFourServer.gen
+
+service WebInterface {
+  oneway void setMode(1: i32 bid, 2: i32 mode),
+  oneway void startGame(1: i32 bid),
+  oneway void makeMove(1: i32 bid, 2: i32 move),
+  oneway void abortGame(1: i32 bid),
+  string fetchResponse(1: i32 bid)
+}
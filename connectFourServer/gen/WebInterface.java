@@ -261,7 +261,7 @@ public class WebInterface {
 
   }
 
-  public static class setMode_args implements TBase<setMode_args._Fields>, java.io.Serializable, Cloneable, Comparable<setMode_args>   {
+  public static class setMode_args implements TBase<setMode_args, setMode_args._Fields>, java.io.Serializable, Cloneable, Comparable<setMode_args>   {
     private static final TStruct STRUCT_DESC = new TStruct("setMode_args");
 
     private static final TField BID_FIELD_DESC = new TField("bid", TType.I32, (short)1);
@@ -370,6 +370,17 @@ public class WebInterface {
       return new setMode_args(this);
     }
 
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void clear() {
+      setBidIsSet(false);
+      this.bid = 0;
+      setModeIsSet(false);
+      this.mode = 0;
+    }
+
     @Deprecated
     public setMode_args clone() {
       return new setMode_args(this);
@@ -619,7 +630,7 @@ public class WebInterface {
 
   }
 
-  public static class startGame_args implements TBase<startGame_args._Fields>, java.io.Serializable, Cloneable, Comparable<startGame_args>   {
+  public static class startGame_args implements TBase<startGame_args, startGame_args._Fields>, java.io.Serializable, Cloneable, Comparable<startGame_args>   {
     private static final TStruct STRUCT_DESC = new TStruct("startGame_args");
 
     private static final TField BID_FIELD_DESC = new TField("bid", TType.I32, (short)1);
@@ -718,6 +729,15 @@ public class WebInterface {
       return new startGame_args(this);
     }
 
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void clear() {
+      setBidIsSet(false);
+      this.bid = 0;
+    }
+
     @Deprecated
     public startGame_args clone() {
       return new startGame_args(this);
@@ -899,7 +919,7 @@ public class WebInterface {
 
   }
 
-  public static class makeMove_args implements TBase<makeMove_args._Fields>, java.io.Serializable, Cloneable, Comparable<makeMove_args>   {
+  public static class makeMove_args implements TBase<makeMove_args, makeMove_args._Fields>, java.io.Serializable, Cloneable, Comparable<makeMove_args>   {
     private static final TStruct STRUCT_DESC = new TStruct("makeMove_args");
 
     private static final TField BID_FIELD_DESC = new TField("bid", TType.I32, (short)1);
@@ -1008,6 +1028,17 @@ public class WebInterface {
       return new makeMove_args(this);
     }
 
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void clear() {
+      setBidIsSet(false);
+      this.bid = 0;
+      setMoveIsSet(false);
+      this.move = 0;
+    }
+
     @Deprecated
     public makeMove_args clone() {
       return new makeMove_args(this);
@@ -1257,7 +1288,7 @@ public class WebInterface {
 
   }
 
-  public static class abortGame_args implements TBase<abortGame_args._Fields>, java.io.Serializable, Cloneable, Comparable<abortGame_args>   {
+  public static class abortGame_args implements TBase<abortGame_args, abortGame_args._Fields>, java.io.Serializable, Cloneable, Comparable<abortGame_args>   {
     private static final TStruct STRUCT_DESC = new TStruct("abortGame_args");
 
     private static final TField BID_FIELD_DESC = new TField("bid", TType.I32, (short)1);
@@ -1356,6 +1387,15 @@ public class WebInterface {
       return new abortGame_args(this);
     }
 
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void clear() {
+      setBidIsSet(false);
+      this.bid = 0;
+    }
+
     @Deprecated
     public abortGame_args clone() {
       return new abortGame_args(this);
@@ -1537,7 +1577,7 @@ public class WebInterface {
 
   }
 
-  public static class fetchResponse_args implements TBase<fetchResponse_args._Fields>, java.io.Serializable, Cloneable, Comparable<fetchResponse_args>   {
+  public static class fetchResponse_args implements TBase<fetchResponse_args, fetchResponse_args._Fields>, java.io.Serializable, Cloneable, Comparable<fetchResponse_args>   {
     private static final TStruct STRUCT_DESC = new TStruct("fetchResponse_args");
 
     private static final TField BID_FIELD_DESC = new TField("bid", TType.I32, (short)1);
@@ -1636,6 +1676,15 @@ public class WebInterface {
       return new fetchResponse_args(this);
     }
 
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void clear() {
+      setBidIsSet(false);
+      this.bid = 0;
+    }
+
     @Deprecated
     public fetchResponse_args clone() {
       return new fetchResponse_args(this);
@@ -1817,7 +1866,7 @@ public class WebInterface {
 
   }
 
-  public static class fetchResponse_result implements TBase<fetchResponse_result._Fields>, java.io.Serializable, Cloneable, Comparable<fetchResponse_result>   {
+  public static class fetchResponse_result implements TBase<fetchResponse_result, fetchResponse_result._Fields>, java.io.Serializable, Cloneable, Comparable<fetchResponse_result>   {
     private static final TStruct STRUCT_DESC = new TStruct("fetchResponse_result");
 
     private static final TField SUCCESS_FIELD_DESC = new TField("success", TType.STRING, (short)0);
@@ -1913,6 +1962,14 @@ public class WebInterface {
       return new fetchResponse_result(this);
     }
 
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void clear() {
+      this.success = null;
+    }
+
     @Deprecated
     public fetchResponse_result clone() {
       return new fetchResponse_result(this);
@@ -0,0 +1,774 @@
+/*
+ * Bench holds the microbenchmarks behind the performance changes of both
+ * servers, so their before and after numbers can be reproduced.  Each case
+ * runs the current code next to a copy of what it replaced, on the same
+ * input, and prints the cost of both.
+ *
+ *   dispatch  resolving a command type from the bytes of a frame and
+ *             dispatching it: decoding it for the old chain of String.equals()
+ *             against matching the bytes and the handler table.
+ *   registry  bot lookups, and a disconnect plus login, in a list of 10k, 100k
+ *             and 1M bots against the BotRegistry.
+ *   parse     taking ACTION_REPLY and PLAYCARDS_REPLY metadata apart with
+ *             split(":") against a Command parsed once.
+ *   send      pushing packs to a local socket sink, one PrintWriter per pack
+ *             against the batching CommandSender.
+ *   wire      bytes and CPU per frame, text against binary, for the output
+ *             of a few thousand games and for incoming replies.
+ *   compress  bytes saved against CPU spent by the FrameCompressor on game
+ *             output, at -Dcw.compressThreshold.
+ *   outclean  CLEAN_OUTPUT and fetchResponse() with 50k web messages pending,
+ *             the old shared list against OutputMailboxes.
+ *
+ * Every variant is run -Dcw.benchRounds times (default 5) after as many
+ * warm-up rounds, alternating between variants, and the best round is
+ * reported.  Results vary with the machine; compare variants from one run.
+ *
+ *     java cw_generic.Bench [case ...]        (default: every case)
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Bench {
+    private static final int rounds = Math.max(1, Integer.getInteger("cw.benchRounds", 5));
+
+    private static long sink;       // keeps results alive so the JIT cannot drop the work
+
+    private static void compare(String title, long ops, String[] names, Runnable[] variants) {
+        long[] each = new long[variants.length];
+        Arrays.fill(each, ops);
+        compare(title, each, names, variants);
+    }
+
+    // Time every variant (variant v doing ops[v] operations per run), best
+    // of rounds.
+    private static void compare(String title, long[] ops, String[] names, Runnable[] variants) {
+        long[] best = new long[variants.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        for (int r = 0; r < 2 * rounds; r++) {
+            for (int v = 0; v < variants.length; v++) {
+                long start = System.nanoTime();
+                variants[v].run();
+                long nanos = System.nanoTime() - start;
+                if (r >= rounds) {
+                    best[v] = Math.min(best[v], nanos);
+                }
+            }
+        }
+        System.out.println(title);
+        for (int v = 0; v < variants.length; v++) {
+            System.out.println(String.format("  %-28s %10.1f ns/op", names[v], (double) best[v] / ops[v]));
+        }
+    }
+
+    // A mix of command types as the CommandProcessor sees it during play, and
+    // the worst case for the old chain.  Every type starts out as the bytes of
+    // a frame from the switch: the old listener decoded them into a String
+    // for the chain, the new one matches them against the CommandType names.
+    // The last variant is a command whose producer names its CommandType
+    // (the timers, the Thrift interface).  Every branch calls a handler.
+    private static void dispatch() {
+        String[] mix = new String[100];
+        int i = 0;
+        for (; i < 80; i++) {
+            mix[i] = "ACTION_REPLY";
+        }
+        for (; i < 88; i++) {
+            mix[i] = "GAME_INITIALIZE";
+        }
+        for (; i < 92; i++) {
+            mix[i] = "LOGIN_INFORM";
+        }
+        for (; i < 96; i++) {
+            mix[i] = "DISCONNECT_BOT_REMOTE";
+        }
+        mix[i++] = "CHALLENGE";
+        mix[i++] = "CLEAN_OUTPUT";
+        mix[i++] = "SET_MODE";
+        mix[i++] = "SERVER_MESSAGE";
+        Collections.shuffle(Arrays.asList(mix), new Random(1));
+        dispatch("dispatch: resolve and dispatch one command, play mix", mix);
+        dispatch("dispatch: resolve and dispatch one command, CLEAN_OUTPUT (last in the chain)", new String[] {"CLEAN_OUTPUT"});
+    }
+
+    private static void dispatch(String title, String[] mix) {
+        final int n = 1 << 20;
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        final int[] ends = new int[n];
+        final Command[] cmds = new Command[n];
+        for (int k = 0; k < n; k++) {
+            String type = mix[k % mix.length];
+            byte[] b = type.getBytes(StandardCharsets.US_ASCII);
+            frames.write(b, 0, b.length);
+            ends[k] = frames.size();
+            cmds[k] = new Command(CommandType.lookup(type), "1:0:3");
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(frames.toByteArray());
+        final byte[] scratch = new byte[256];
+        final long[] counts = new long[CommandType.values().length];
+        final Runnable[] handlers = new Runnable[CommandType.values().length];
+        for (CommandType t : CommandType.values()) {
+            final int o = t.ordinal();
+            handlers[o] = () -> counts[o]++;
+        }
+
+        compare(title, n,
+                new String[] {"decode + equals chain (old)", "byte lookup + handler table", "handler table (type given)"},
+                new Runnable[] {
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            int start = (k == 0) ? 0 : ends[k - 1];
+                            buf.get(start, scratch, 0, ends[k] - start);
+                            String type = new String(scratch, 0, ends[k] - start, StandardCharsets.UTF_8);
+                            if (type.equals("LOGIN_INFORM")) {
+                                handlers[0].run();
+                            } else if (type.equals("GAME_INITIALIZE")) {
+                                handlers[1].run();
+                            } else if (type.equals("ACTION_REPLY")) {
+                                handlers[2].run();
+                            } else if (type.equals("DISCONNECT_BOT_REMOTE")) {
+                                handlers[3].run();
+                            } else if (type.equals("CHALLENGE")) {
+                                handlers[4].run();
+                            } else if (type.equals("SERVER_MESSAGE")) {
+                                handlers[5].run();
+                            } else if (type.equals("WEB_START_GAME")) {
+                                handlers[6].run();
+                            } else if (type.equals("SET_MODE")) {
+                                handlers[7].run();
+                            } else if (type.equals("CLEAN_OUTPUT")) {
+                                handlers[8].run();
+                            } else {
+                                handlers[10].run();
+                            }
+                        }
+                    },
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            int start = (k == 0) ? 0 : ends[k - 1];
+                            handlers[CommandType.lookup(buf, start, ends[k]).ordinal()].run();
+                        }
+                    },
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            handlers[cmds[k].getOpcode().ordinal()].run();
+                        }
+                    }
+                });
+        sink += counts[2];
+    }
+
+    // Bots in a synchronized ArrayList scanned for every lookup (old) against
+    // the BotRegistry, at 10k, 100k and 1M bots, two bots per game.  Each
+    // run looks up random bots by bid and by gid, and disconnects and logs in
+    // again a random bot (remove and add).
+    private static void registry() {
+        for (int size : new int[] {10000, 100000, 1000000}) {
+            final List<BotManager> list = Collections.synchronizedList(new ArrayList<BotManager>());
+            final BotRegistry registry = new BotRegistry();
+            for (int bid = 1; bid <= size; bid++) {
+                BotManager b = new BotManager(bid, 1, "java");
+                b.setGID((bid + 1) / 2);
+                list.add(b);
+                BotManager r = new BotManager(bid, 1, "java");
+                registry.add(r);
+                registry.setGame(r, (bid + 1) / 2);
+            }
+            final int[] keys = new Random(size).ints(1 << 16, 1, size + 1).toArray();
+            final long scans = Math.max(4, 20000000L / size);     // keep a round of the old code under a second
+            final long lookups = 1 << 20;
+
+            compare("registry: " + size + " bots, lookup by bid", new long[] {scans, lookups},
+                    new String[] {"list scan (old)", "BotRegistry.get"},
+                    new Runnable[] {
+                        () -> {
+                            for (int k = 0; k < scans; k++) {
+                                sink += scanByBID(list, keys[k & 0xffff]).getGID();
+                            }
+                        },
+                        () -> {
+                            for (int k = 0; k < lookups; k++) {
+                                sink += registry.get(keys[k & 0xffff]).getGID();
+                            }
+                        }
+                    });
+            compare("registry: " + size + " bots, lookup by gid", new long[] {scans, lookups},
+                    new String[] {"list scan (old)", "BotRegistry.byGame"},
+                    new Runnable[] {
+                        () -> {
+                            for (int k = 0; k < scans; k++) {
+                                sink += scanByGID(list, (keys[k & 0xffff] + 1) / 2).getBID();
+                            }
+                        },
+                        () -> {
+                            for (int k = 0; k < lookups; k++) {
+                                sink += registry.byGame((keys[k & 0xffff] + 1) / 2).getBID();
+                            }
+                        }
+                    });
+            compare("registry: " + size + " bots, disconnect and log in again", new long[] {scans, lookups},
+                    new String[] {"list remove + add (old)", "BotRegistry remove + add"},
+                    new Runnable[] {
+                        () -> {
+                            for (int k = 0; k < scans; k++) {
+                                BotManager b = scanByBID(list, keys[k & 0xffff]);
+                                list.remove(b);
+                                list.add(b);
+                            }
+                        },
+                        () -> {
+                            for (int k = 0; k < lookups; k++) {
+                                BotManager b = registry.get(keys[k & 0xffff]);
+                                registry.remove(b);
+                                registry.add(b);
+                            }
+                        }
+                    });
+        }
+    }
+
+    private static BotManager scanByBID(List<BotManager> bots, int bid) {
+        for (BotManager b : bots) {
+            if (b.getBID() == bid) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    private static BotManager scanByGID(List<BotManager> bots, int gid) {
+        for (BotManager b : bots) {
+            if (b.getGID() == gid) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    // An incoming reply taken apart the old way, with split(":") in the
+    // handler and again in every getBID() call, against a Command parsed once
+    // at ingress.  ACTION_REPLY (connectFour) reads the bid once and the move;
+    // PLAYCARDS_REPLY (Bullshit) reads the bid three times and the cards.
+    private static void parse() {
+        final int n = 1 << 20;
+        final String[] actions = new String[n];
+        final String[] plays = new String[n];
+        Random rnd = new Random(6);
+        String[] ranks = {"2", "3", "4", "5", "6", "7", "8", "9", "10", "J", "Q", "K", "A"};
+        for (int k = 0; k < n; k++) {
+            int bid = 1 + rnd.nextInt(100000);
+            actions[k] = bid + ":" + (1 + rnd.nextInt(50000)) + ":" + (1 + rnd.nextInt(7));
+            String rank = ranks[rnd.nextInt(ranks.length)];
+            StringBuilder cards = new StringBuilder(rank).append('H');
+            for (int c = rnd.nextInt(4); c > 0; c--) {
+                cards.append(',').append(rank).append("SDC".charAt(c - 1));
+            }
+            plays[k] = bid + ":" + cards;
+        }
+
+        compare("parse: ACTION_REPLY bid:gid:move", n,
+                new String[] {"split + getBID split (old)", "Command parsed once"},
+                new Runnable[] {
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            Command cmd = new Command("ACTION_REPLY", actions[k]);
+                            String[] metaData = cmd.getMetaData().split(":");
+                            sink += oldBID(cmd.getMetaData());
+                            if (metaData.length == 3) {
+                                sink += metaData[2].length();
+                            }
+                        }
+                    },
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            Command cmd = new Command("ACTION_REPLY", null, 0, actions[k]);
+                            sink += cmd.getBID();
+                            if (cmd.getFieldCount() == 3) {
+                                sink += cmd.getField(2).length();
+                            }
+                        }
+                    }
+                });
+        compare("parse: PLAYCARDS_REPLY bid:cards", n,
+                new String[] {"split + getBID split (old)", "Command parsed once"},
+                new Runnable[] {
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            Command cmd = new Command("PLAYCARDS_REPLY", plays[k]);
+                            sink += oldBID(cmd.getMetaData());
+                            String[] metaData = cmd.getMetaData().split(":");
+                            if (metaData.length == 2) {
+                                sink += metaData[1].length() + oldBID(cmd.getMetaData()) + oldBID(cmd.getMetaData());
+                            }
+                        }
+                    },
+                    () -> {
+                        for (int k = 0; k < n; k++) {
+                            Command cmd = new Command("PLAYCARDS_REPLY", null, 0, plays[k]);
+                            sink += cmd.getBID();
+                            if (cmd.getFieldCount() == 2) {
+                                sink += cmd.getField(1).length() + cmd.getBID() + cmd.getBID();
+                            }
+                        }
+                    }
+                });
+    }
+
+    // Command.getBID() as it was before Commands were parsed once.
+    private static int oldBID(String metaData) {
+        try {
+            String[] parts = metaData.split(":");
+            return Integer.parseInt(parts[0]);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // Packs pushed through a sendQueue to a local socket that reads and
+    // discards everything.  The old sender built an autoflushing PrintWriter
+    // per pack, so every pack was its own write; the CommandSender encodes a
+    // batch into one GatheringOutputStream and flushes once.  A run ends when
+    // the sink has read every byte.
+    private static void send() {
+        final int n = 200000;
+        final int[] bids = new Random(11).ints(n, 1, 100000).toArray();
+        long bytes = 0;
+        for (int k = 0; k < n; k++) {
+            bytes += ("ACTION_REQUEST<<" + bids[k] + ":5000:4\n").length();
+        }
+        final long total = bytes;
+        try {
+            final Sink oldSink = new Sink();
+            final Socket socket = new Socket(InetAddress.getLoopbackAddress(), oldSink.port());
+            final BlockingQueue<CmdPack> oldQueue = new LinkedBlockingQueue<CmdPack>();
+            Thread oldSender = new Thread(() -> {
+                try {
+                    while (true) {
+                        CmdPack pack = oldQueue.take();
+                        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")), true);
+                        out.println(pack.cmd.getCommandType() + "<<" + pack.getBID() + ":" + pack.getActionTime() + ":" + pack.cmd.getMetaData());
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "OldCommandSender");
+            oldSender.setDaemon(true);
+            oldSender.start();
+
+            final Sink newSink = new Sink();
+            final BlockingQueue<CmdPack> newQueue = new LinkedBlockingQueue<CmdPack>();
+            SwitchConnection conn = SwitchConnection.open(InetAddress.getLoopbackAddress(), newSink.port());
+            CommandSender cs = new CommandSender(conn, newQueue, null, null, new ReplayBuffer());
+            cs.endNegotiation();
+            cs.setDaemon(true);
+            cs.start();
+
+            compare("send: " + n + " ACTION_REQUESTs through a sendQueue to a local socket", n,
+                    new String[] {"PrintWriter per pack (old)", "CommandSender batches"},
+                    new Runnable[] {
+                        () -> {
+                            offer(oldQueue, bids);
+                            oldSink.await(total);
+                        },
+                        () -> {
+                            offer(newQueue, bids);
+                            newSink.await(total);
+                        }
+                    });
+            System.out.println(String.format("  %d bytes per run, %d bytes per pack", total, total / n));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void offer(BlockingQueue<CmdPack> queue, int[] bids) {
+        for (int bid : bids) {
+            queue.add(new CmdPack(new Command("ACTION_REQUEST", "4"), bid, 5000));
+        }
+    }
+
+    // Accepts one connection and reads and counts everything sent to it.
+    private static class Sink extends Thread {
+        private final ServerSocketChannel server = ServerSocketChannel.open();
+        private final AtomicLong received = new AtomicLong();
+        private long expected;
+
+        Sink() throws IOException {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            setDaemon(true);
+            start();
+        }
+
+        int port() {
+            return server.socket().getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+            try (SocketChannel peer = server.accept()) {
+                int r;
+                while ((r = peer.read(buf)) >= 0) {
+                    received.addAndGet(r);
+                    buf.clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Wait for the next bytes to arrive.
+        void await(long bytes) {
+            expected += bytes;
+            while (received.get() < expected) {
+                Thread.yield();
+            }
+        }
+    }
+
+    // One game's worth of output to the switch, as the connectFour server
+    // sends it: GAME_INITIALIZE to both bots, an ACTION_REQUEST per move, a
+    // GAME_REPORT with the move list to both bots and the game record.
+    private static List<CmdPack> game(Random rnd, int bid1, int bid2) {
+        List<CmdPack> packs = new ArrayList<CmdPack>();
+        packs.add(new CmdPack(new Command("GAME_INITIALIZE", "red:" + bid2), bid1, 5000));
+        packs.add(new CmdPack(new Command("GAME_INITIALIZE", "black:" + bid1), bid2, 5000));
+        StringBuilder moves = new StringBuilder();
+        int count = 7 + rnd.nextInt(30);
+        for (int m = 0; m < count; m++) {
+            int col = 1 + rnd.nextInt(7);
+            moves.append(m > 0 ? "," : "").append(col);
+            packs.add(new CmdPack(new Command("ACTION_REQUEST", Integer.toString(col)), (m % 2 == 0) ? bid2 : bid1, 5000));
+        }
+        String report = bid1 + ":" + bid2 + ":" + bid1 + ":" + moves;
+        packs.add(new CmdPack(new Command("GAME_REPORT", bid1 + ":" + report), bid1));
+        packs.add(new CmdPack(new Command("GAME_REPORT", bid2 + ":" + report), bid2));
+        packs.add(new CmdPack(new Command("EXECUTE_PROCEDURE", "insert_gamedata:" + bid1 + "," + bid1 + "," + bid2 + ",'" + moves + "',0,0,'',1")));
+        return packs;
+    }
+
+    // Text against binary frames, both ways.  Output: the frames of 2000
+    // connectFour games encoded by writeText() and writeBinary() into a
+    // stream that only counts.  Input: 1M ACTION_REPLYs split by the
+    // FrameDecoder and turned into Commands as SwitchListener does.
+    private static void wire() {
+        Random rnd = new Random(14);
+        final List<CmdPack> out = new ArrayList<CmdPack>();
+        for (int g = 0; g < 2000; g++) {
+            out.addAll(game(rnd, 1 + rnd.nextInt(100000), 1 + rnd.nextInt(100000)));
+        }
+        final int frames = out.size();
+        final Counter counter = new Counter();
+        final byte[] header = new byte[WireProtocol.HEADER];
+        compare("wire: encode " + frames + " frames of 2000 games", frames,
+                new String[] {"text", "binary"},
+                new Runnable[] {
+                    () -> {
+                        try {
+                            for (CmdPack p : out) {
+                                WireProtocol.writeText(counter, new CmdPack(p.cmd, p.getBID(), p.getActionTime()));
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    },
+                    () -> {
+                        try {
+                            for (CmdPack p : out) {
+                                WireProtocol.writeBinary(counter, new CmdPack(p.cmd, p.getBID(), p.getActionTime()), header, null);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+        try {
+            long text = 0;
+            long binary = 0;
+            for (CmdPack p : out) {
+                counter.count = 0;
+                WireProtocol.writeText(counter, p);
+                text += counter.count;
+                counter.count = 0;
+                WireProtocol.writeBinary(counter, p, header, null);
+                binary += counter.count;
+            }
+            System.out.println(String.format("  bytes per frame: text %.1f, binary %.1f", (double) text / frames, (double) binary / frames));
+
+            final int n = 1 << 20;
+            ByteArrayOutputStream textIn = new ByteArrayOutputStream();
+            ByteArrayOutputStream binaryIn = new ByteArrayOutputStream();
+            for (int k = 0; k < n; k++) {
+                int bid = 1 + rnd.nextInt(100000);
+                String payload = (1 + rnd.nextInt(50000)) + ":" + (1 + rnd.nextInt(7));
+                textIn.write(("ACTION_REPLY<<" + bid + ":" + payload + "\n").getBytes(StandardCharsets.UTF_8));
+                WireProtocol.writeBinary(binaryIn, "ACTION_REPLY", bid, 0, payload, header, null);
+            }
+            final byte[] textBytes = textIn.toByteArray();
+            final byte[] binaryBytes = binaryIn.toByteArray();
+            final Ingress ingress = new Ingress();
+            compare("wire: decode " + n + " ACTION_REPLYs into Commands", n,
+                    new String[] {"text", "binary"},
+                    new Runnable[] {
+                        () -> ingress.feed(textBytes, false),
+                        () -> ingress.feed(binaryBytes, true)
+                    });
+            System.out.println(String.format("  bytes per frame: text %.1f, binary %.1f", (double) textBytes.length / n,
+                    (double) binaryBytes.length / n));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Binary frames with and without the FrameCompressor: the output of 2000
+    // connectFour games plus 2000 Bullshit deals (a 13 card CARD_MESSAGE to
+    // each of four bots) and piles picked up after a bullshit call (3 to 52
+    // cards).  The compressor only takes payloads of cw.compressThreshold
+    // bytes or more, so run this case again with a lower threshold to see
+    // what compressing smaller payloads would cost and save.
+    private static void compress() {
+        Random rnd = new Random(15);
+        final List<CmdPack> out = new ArrayList<CmdPack>();
+        for (int g = 0; g < 2000; g++) {
+            out.addAll(game(rnd, 1 + rnd.nextInt(100000), 1 + rnd.nextInt(100000)));
+            int[] deck = new int[52];
+            for (int c = 0; c < 52; c++) {
+                deck[c] = c / 4;
+            }
+            for (int c = 51; c > 0; c--) {
+                int j = rnd.nextInt(c + 1);
+                int t = deck[c];
+                deck[c] = deck[j];
+                deck[j] = t;
+            }
+            for (int b = 0; b < 4; b++) {
+                out.add(new CmdPack(new Command("CARD_MESSAGE", cards(deck, 13 * b, 13)), 1 + rnd.nextInt(100000), 0));
+            }
+            out.add(new CmdPack(new Command("CARD_MESSAGE", cards(deck, 0, 3 + rnd.nextInt(50))), 1 + rnd.nextInt(100000), 0));
+        }
+        final int frames = out.size();
+        final Counter counter = new Counter();
+        final byte[] header = new byte[WireProtocol.HEADER];
+        final FrameCompressor compressor = new FrameCompressor();
+        compare("compress: " + frames + " binary frames, compressThreshold " + Integer.getInteger("cw.compressThreshold", 512), frames,
+                new String[] {"binary", "binary + deflate"},
+                new Runnable[] {
+                    () -> encode(out, counter, header, null),
+                    () -> encode(out, counter, header, compressor)
+                });
+        long raw = 0;
+        long compressed = 0;
+        int smaller = 0;
+        for (CmdPack p : out) {
+            List<CmdPack> one = Collections.singletonList(p);
+            counter.count = 0;
+            encode(one, counter, header, null);
+            long before = counter.count;
+            counter.count = 0;
+            encode(one, counter, header, compressor);
+            raw += before;
+            compressed += counter.count;
+            smaller += (counter.count < before) ? 1 : 0;
+        }
+        System.out.println(String.format("  bytes per frame: binary %.1f, binary + deflate %.1f (%.1f%% saved), %d frames compressed",
+                (double) raw / frames, (double) compressed / frames, 100.0 * (raw - compressed) / raw, smaller));
+        compressor.end();
+    }
+
+    private static void encode(List<CmdPack> packs, OutputStream out, byte[] header, FrameCompressor compressor) {
+        try {
+            for (CmdPack p : packs) {
+                WireProtocol.writeBinary(out, new CmdPack(p.cmd, p.getBID(), p.getActionTime()), header, compressor);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Card ranks as Bullshit's Hand.GetHandAsString() lists them, sorted.
+    private static String cards(int[] deck, int from, int count) {
+        int[] hand = Arrays.copyOfRange(deck, from, from + count);
+        Arrays.sort(hand);
+        StringBuilder sb = new StringBuilder();
+        for (int c : hand) {
+            sb.append(sb.length() > 0 ? "," : "").append(c);
+        }
+        return sb.toString();
+    }
+
+    // 50k web messages pending for 5k humans, ten each, in the old shared
+    // list and in OutputMailboxes.  CLEAN_OUTPUT with nothing expired: the
+    // old cleanOutput() scanned every pending pack, expired() only looks at
+    // mailboxes whose expiry timeout fired.  fetchResponse() for one human
+    // (whose ten packs are then queued again): the old one scanned the list
+    // and removed with removeAll(), take() empties one mailbox.
+    private static void outclean() {
+        final int humans = 5000;
+        final int each = 10;
+        final List<OutputPack> outQueue = Collections.synchronizedList(new ArrayList<OutputPack>());
+        final TimerWheel timerWheel = new TimerWheel(10, null);
+        final OutputMailboxes outBoxes = new OutputMailboxes(humans * each, timerWheel);
+        for (int k = 0; k < each; k++) {
+            for (int h = 1; h <= humans; h++) {
+                outQueue.add(new OutputPack(-h, "ACTION_REQUEST<<" + k));
+                outBoxes.offer(new OutputPack(-h, "ACTION_REQUEST<<" + k));
+            }
+        }
+        final int[] bids = new Random(23).ints(1 << 16, 1, humans + 1).toArray();
+        final int cleans = 2000;
+        final int fetches = 2000;
+
+        compare("outclean: CLEAN_OUTPUT, " + outBoxes.size() + " packs pending, none expired", cleans,
+                new String[] {"list scan (old)", "OutputMailboxes.expired"},
+                new Runnable[] {
+                    () -> {
+                        for (int k = 0; k < cleans; k++) {
+                            synchronized (outQueue) {
+                                long currentTime = System.currentTimeMillis();
+                                for (OutputPack p : outQueue) {
+                                    if (p.getEXP() <= currentTime) {
+                                        sink++;
+                                    }
+                                }
+                            }
+                        }
+                    },
+                    () -> {
+                        for (int k = 0; k < cleans; k++) {
+                            sink += outBoxes.expired(System.currentTimeMillis()).size();
+                        }
+                    }
+                });
+        compare("outclean: fetchResponse for one human, " + outBoxes.size() + " packs pending", fetches,
+                new String[] {"list scan + removeAll (old)", "OutputMailboxes.take"},
+                new Runnable[] {
+                    () -> {
+                        for (int k = 0; k < fetches; k++) {
+                            int bid = -bids[k & 0xffff];
+                            String response = "";
+                            List<OutputPack> remQueue = Collections.synchronizedList(new ArrayList<OutputPack>());
+                            synchronized (outQueue) {
+                                for (OutputPack p : outQueue) {
+                                    if (p.getBID() == bid) {
+                                        response = response.concat(p.getCmd() + "&&");
+                                        remQueue.add(p);
+                                    }
+                                }
+                                outQueue.removeAll(remQueue);
+                            }
+                            sink += response.length();
+                            outQueue.addAll(remQueue);
+                        }
+                    },
+                    () -> {
+                        for (int k = 0; k < fetches; k++) {
+                            int bid = -bids[k & 0xffff];
+                            StringBuilder response = new StringBuilder();
+                            List<OutputPack> packs = outBoxes.take(bid);
+                            for (OutputPack p : packs) {
+                                response.append(p.getCmd()).append("&&");
+                            }
+                            sink += response.length();
+                            for (OutputPack p : packs) {
+                                outBoxes.offer(p);
+                            }
+                        }
+                    }
+                });
+    }
+
+    // An OutputStream that only counts.
+    private static class Counter extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    // Builds Commands from frames the way SwitchListener does, minus the
+    // control frames and the commandQueue.
+    private static class Ingress implements FrameDecoder.Handler {
+        private byte[] scratch = new byte[256];
+
+        void feed(byte[] stream, boolean binary) {
+            FrameDecoder decoder = new FrameDecoder(1 << 16);
+            decoder.setBinary(binary);
+            try {
+                for (int off = 0; off < stream.length;) {
+                    ByteBuffer buf = decoder.buffer();
+                    int len = Math.min(buf.remaining(), stream.length - off);
+                    buf.put(stream, off, len);
+                    off += len;
+                    decoder.decode(this);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void frame(ByteBuffer buf, int typeStart, int typeEnd, int metaStart, int metaEnd) {
+            CommandType t = CommandType.lookup(buf, typeStart, typeEnd);
+            String cmdType = (t == CommandType.UNKNOWN) ? text(buf, typeStart, typeEnd) : t.name();
+            sink += new Command(cmdType, null, 0, text(buf, metaStart, metaEnd)).getBID();
+        }
+
+        @Override
+        public void binaryFrame(ByteBuffer buf, int opcode, int bid, int actionTime, int typeStart, int typeEnd, int payloadStart, int payloadEnd) {
+            String cmdType = (typeStart >= 0) ? text(buf, typeStart, typeEnd) : WireProtocol.typeOf(opcode);
+            String payload = text(buf, payloadStart, payloadEnd);
+            String metaData = (bid == -1) ? payload : bid + ":" + payload;
+            sink += new Command(cmdType, null, 0, metaData).getBID();
+        }
+
+        private String text(ByteBuffer buf, int start, int end) {
+            int len = end - start;
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            buf.get(start, scratch, 0, len);
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static void main(String args[]) {
+        Map<String, Runnable> cases = new LinkedHashMap<String, Runnable>();
+        cases.put("dispatch", Bench::dispatch);
+        cases.put("registry", Bench::registry);
+        cases.put("parse", Bench::parse);
+        cases.put("send", Bench::send);
+        cases.put("wire", Bench::wire);
+        cases.put("compress", Bench::compress);
+        cases.put("outclean", Bench::outclean);
+        List<String> names = (args.length > 0) ? Arrays.asList(args) : new ArrayList<String>(cases.keySet());
+        System.out.println("Bench: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " cpus, best of " + rounds + " rounds");
+        for (String name : names) {
+            Runnable c = cases.get(name);
+            if (c == null) {
+                System.out.println("Unknown case " + name + ", expected one of " + cases.keySet());
+                continue;
+            }
+            c.run();
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
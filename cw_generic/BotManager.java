@@ -14,6 +14,7 @@ public class BotManager  {
     private int gid;             // game id (when currently involved in a game)
     private int mode;            // Integer flag representing mode: debug=0, Live/Competition=1.  Currently broken in c4.
     private String language;     // Optional field corresponding to bot language.
+    private TimerWheel.Timeout moveTimer;  // Server side deadline for the pending reply (null when none is armed).
     
     //Constructor
     public BotManager(int bid, int mode, String language){
@@ -41,5 +42,11 @@ public class BotManager  {
     }
     public boolean isBusy(){
         return this.busy;
-    }       
+    }
+    public TimerWheel.Timeout getMoveTimer(){
+        return this.moveTimer;
+    }
+    public void setMoveTimer(TimerWheel.Timeout t){
+        this.moveTimer = t;
+    }
  }
@@ -0,0 +1,89 @@
+/*
+ * The BotRegistry holds every connected bot (and, for connectFour, every
+ * connected human) keyed by bid, plus a secondary index from gid to the bots
+ * assigned to that game.  Both lookups are O(1).  A bot's game must be
+ * assigned through setGame() so the secondary index stays consistent; the
+ * index keeps a bot under its last gid until it is reassigned or removed,
+ * matching what BotManager.getGID() reports.
+ */
+
+package cw_generic;
+
+import java.util.*;
+
+public class BotRegistry {
+    private final IntObjectMap<BotManager> byBID = new IntObjectMap<BotManager>(1024);
+    private final IntObjectMap<List<BotManager>> byGID = new IntObjectMap<List<BotManager>>(1024);
+
+    public synchronized void add(BotManager b) {
+        byBID.put(b.getBID(), b);
+        index(b);
+    }
+
+    public synchronized boolean remove(BotManager b) {
+        if (byBID.get(b.getBID()) != b) {
+            return false;
+        }
+        byBID.remove(b.getBID());
+        unindex(b);
+        return true;
+    }
+
+    public BotManager get(int bid) {
+        return byBID.get(bid);
+    }
+
+    // Assign bot b to game gid and update the gid index.
+    public synchronized void setGame(BotManager b, int gid) {
+        if (byBID.get(b.getBID()) == b) {
+            unindex(b);
+            b.setGID(gid);
+            index(b);
+        } else {
+            b.setGID(gid);
+        }
+    }
+
+    // First bot assigned to gid, or null.
+    public synchronized BotManager byGame(int gid) {
+        List<BotManager> list = byGID.get(gid);
+        return (list == null) ? null : list.get(0);
+    }
+
+    // Snapshot of all bots assigned to gid.
+    public synchronized List<BotManager> allByGame(int gid) {
+        List<BotManager> list = byGID.get(gid);
+        return (list == null) ? new ArrayList<BotManager>() : new ArrayList<BotManager>(list);
+    }
+
+    // Snapshot of all registered bots.
+    public List<BotManager> values() {
+        return byBID.values();
+    }
+
+    public int size() {
+        return byBID.size();
+    }
+
+    private void index(BotManager b) {
+        if (b.getGID() == 0) {
+            return;
+        }
+        List<BotManager> list = byGID.get(b.getGID());
+        if (list == null) {
+            list = new ArrayList<BotManager>(4);
+            byGID.put(b.getGID(), list);
+        }
+        list.add(b);
+    }
+
+    private void unindex(BotManager b) {
+        List<BotManager> list = byGID.get(b.getGID());
+        if (list != null) {
+            list.remove(b);
+            if (list.isEmpty()) {
+                byGID.remove(b.getGID());
+            }
+        }
+    }
+}
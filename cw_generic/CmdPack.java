@@ -7,8 +7,9 @@
  * In the game server, Command objects are frequently packaged in “CommandPacks”
  * (cmdPack object).  A cmdPack consists of a Command as well as optional
  * routing information if the command should be forwarded again by the switch
- * to a bot.  Depending on which constructor is used, the command pack will
- * insert a destination bid & actionTime to the head of a command’s metadata.
+ * to a bot.  Depending on which constructor is used, the command pack carries
+ * a destination bid & actionTime which the CommandSender puts in front of the
+ * command’s metadata (text protocol) or in the frame header (binary protocol).
  * This information is extracted by the switch, removed, and the core command
  * is then forwarded to the appropriate destination.
  *
@@ -19,13 +20,32 @@
  * to “0” (zero), no response time is enforced or even required.
  * SERVER_MESSAGE commands will always have the actionTime parameter set
  * to zero as a bot response is never required.
+ *
+ * A multicast pack carries one command for several bots (e.g. every seat at
+ * a table).  getBID() is its first target, which decides its sendQueue lane,
+ * so all targets must share that lane.  It goes to the switch as one frame if
+ * the switch accepted MULTICAST1 and is expand()ed into one pack per target
+ * otherwise.
+ *
+ * The metadata is encoded to UTF-8 once, the first time the pack is written
+ * (getPayload()), and the bytes are reused by replays and by the packs a
+ * multicast expands into; the routing prefix is written in front of them
+ * without building a new String.  Packs for web players (negative bids) are
+ * turned into OutputPacks instead and keep the TYPE<<metadata string for
+ * them; bot-bound packs never build it.
  */
 package cw_generic;
 
+import java.nio.charset.*;
+
  public class CmdPack{
         public Command cmd;
         private int bid;        
-        private String cString;
+        private int[] bids;     // multicast targets, or null
+        private long actionTime;
+        private String cString;     // web-bound packs only
+        private byte[] payload;     // UTF-8 metadata, once encoded
+        private final long createdAt = System.nanoTime();   // start of this pack's sendQueue wait
 
         // Used to send command to the switch (no additional forwarding required)
         public CmdPack(Command cmd){
@@ -36,9 +56,8 @@ package cw_generic;
         public CmdPack(Command cmd, int bid){
             this.cmd = cmd;
             this.bid = bid;            
-            this.cString = cmd.getCommandType()+"<<"+cmd.getMetaData();
-            if(bid>0){
-                this.cmd.setMetaData(bid+":0:"+cmd.getMetaData());
+            if (bid < 0) {
+                this.cString = cmd.getCommandType()+"<<"+cmd.getMetaData();
             }
         }
 
@@ -46,16 +65,64 @@ package cw_generic;
         public CmdPack(Command cmd, int bid, long actionTime){
             this.cmd = cmd;
             this.bid = bid;            
-            this.cString = cmd.getCommandType()+"<<"+cmd.getMetaData();
-            if(bid>0){
-                this.cmd.setMetaData(bid+":"+actionTime+":"+cmd.getMetaData());
+            this.actionTime = actionTime;
+            if (bid < 0) {
+                this.cString = cmd.getCommandType()+"<<"+cmd.getMetaData();
             }
         }
         
+        // Send cmd to several bots at once, each with the same actionTime
+        public CmdPack(Command cmd, int[] bids, long actionTime){
+            this(cmd, bids[0], actionTime);
+            this.bids = (bids.length > 1) ? bids : null;
+        }
+
         public int getBID(){
             return bid;
         }
 
+        public boolean isMulticast(){
+            return bids != null;
+        }
+
+        public int[] getBIDs(){
+            return (bids != null) ? bids : new int[] {bid};
+        }
+
+        // One pack per target, sharing the command.
+        public CmdPack[] expand(){
+            if (bids == null) {
+                return new CmdPack[] {this};
+            }
+            CmdPack[] packs = new CmdPack[bids.length];
+            for (int i = 0; i < bids.length; i++) {
+                packs[i] = new CmdPack(cmd, bids[i], actionTime);
+                packs[i].payload = getPayload();
+            }
+            return packs;
+        }
+
+        // Routed packs (bid > 0) are forwarded by the switch to that bot.
+        public boolean isRouted(){
+            return bid>0;
+        }
+
+        public long getActionTime(){
+            return actionTime;
+        }
+
+        public long getCreatedAt(){
+            return createdAt;
+        }
+
+        // The metadata as UTF-8.  The returned array is shared: do not modify it.
+        public byte[] getPayload(){
+            if (payload == null) {
+                payload = String.valueOf(cmd.getMetaData()).getBytes(StandardCharsets.UTF_8);
+            }
+            return payload;
+        }
+
         public OutputPack getOutPack(){
             return new OutputPack(this.bid, this.cString);
         }
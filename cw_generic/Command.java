@@ -20,6 +20,22 @@
  * SERVER_MESSAGE commands will always have the actionTime parameter set
  * to zero as a bot response is never required.
  *
+ * Incoming metadata is laid out as bid:actionTime:payload (the exact number
+ * of ':' separated fields depends on the command).  It is parsed in a single
+ * pass, once per Command: the bid and actionTime are converted to numbers and
+ * the field boundaries are remembered, so handlers can read individual fields
+ * with getField()/fieldEquals() without splitting the string again.
+ * Commands received by the SwitchListener are parsed on arrival; all others
+ * are parsed on first access.
+ *
+ * Producers that already know the CommandType (the SwitchListener, having
+ * matched the type's bytes, the Thrift interface and the timers) pass it in
+ * and it is never looked up; a type given as a String is resolved on the
+ * first getOpcode(), so commands that are only sent never pay for it.
+ *
+ * Each Command also records the System.nanoTime() at which it was created, so
+ * the game server can measure how long it waited in the commandQueue.
+ *
  * The Command object class is common for the switch and the game servers.
  * Additional parameters such as IP and port are required by the switch for
  * command forwarding to bots.
@@ -28,21 +44,39 @@
 package cw_generic;
 
 import java.net.*;
+import java.util.*;
 
 
 public class Command {
     
     private String cmdType;
+    private CommandType opcode;   // cmdType resolved, given on creation or on first use
     private String metaData;
     private InetAddress targetIP;
     private int targetPort;   
 
+    // Parsed view of metaData, valid while fieldCount >= 0.
+    private int fieldCount = -1;
+    private int[] fieldEnds;     // end index (exclusive) of each ':' separated field
+    private int bid;
+    private long actionTime;
+
+    private long createdAt = System.nanoTime();   // start of this command's queue wait, for LatencyStats
+
     public String getCommandType (){
         return cmdType;
     }
        
     public void setCommandType (String value){
         cmdType = value;
+        opcode = null;
+    }
+
+    public CommandType getOpcode (){
+        if (opcode == null) {
+            opcode = CommandType.lookup(cmdType);
+        }
+        return opcode;
     }
     
     public InetAddress getIP (){
@@ -67,6 +101,17 @@ public class Command {
 
     public void setMetaData (String value){
         metaData = value;
+        fieldCount = -1;
+    }
+
+    public long getCreatedAt (){
+        return createdAt;
+    }
+
+    // Restart the queue wait clock.  Used by timers that queue the same
+    // Command object over and over.
+    public void stamp (){
+        createdAt = System.nanoTime();
     }
             
     public Command(String type, InetAddress IP, int port, String metaData)
@@ -75,6 +120,13 @@ public class Command {
         this.targetIP = IP;
         this.targetPort = port;
         this.metaData = metaData;
+        parse();
+    }
+
+    public Command(CommandType type, InetAddress IP, int port, String metaData)
+    {
+        this(type.name(), IP, port, metaData);
+        this.opcode = type;
     }
 
     public Command(InetAddress IP, int port, String metaData)
@@ -90,6 +142,12 @@ public class Command {
         this.metaData = metaData;
     }
 
+    public Command(CommandType type, String metaData)
+    {
+        this(type.name(), metaData);
+        this.opcode = type;
+    }
+
     public Command(String type)
     {
         this.cmdType = type;
@@ -102,14 +160,117 @@ public class Command {
     }
 
     // Incomming commands from the switch always have a bid inserted to the head
-    // of the metaData.  getBID simply returns this value.  If not, do work.
+    // of the metaData.  getBID simply returns this value, or -1 if the first
+    // field is not a number.
     public int getBID(){
-        try{
-            String[] parts = metaData.split(":");
-            int bid = Integer.parseInt(parts[0]);
-            return bid;
-         }catch(Exception e){
-            return -1;
+        if (fieldCount < 0) {
+            parse();
+        }
+        return bid;
+    }
+
+    // Second field as a number (the action time on routed commands), or -1.
+    public long getActionTime(){
+        if (fieldCount < 0) {
+            parse();
+        }
+        return actionTime;
+    }
+
+    // Number of ':' separated fields, as metaData.split(":").length: trailing
+    // empty fields are not counted, so ":::" has none, but "" has one.
+    public int getFieldCount(){
+        if (fieldCount < 0) {
+            parse();
+        }
+        return fieldCount;
+    }
+
+    public String getField(int i){
+        if (fieldCount < 0) {
+            parse();
+        }
+        return metaData.substring(fieldStart(i), fieldEnds[i]);
+    }
+
+    // Compare field i against value without extracting it.
+    public boolean fieldEquals(int i, String value){
+        if (fieldCount < 0) {
+            parse();
+        }
+        if (i >= fieldCount) {
+            return false;
+        }
+        int start = fieldStart(i);
+        return fieldEnds[i] - start == value.length() && metaData.regionMatches(start, value, 0, value.length());
+    }
+
+    private int fieldStart(int i){
+        return (i == 0) ? 0 : fieldEnds[i - 1] + 1;
+    }
+
+    // Single pass over metaData recording field boundaries, bid and actionTime.
+    private void parse(){
+        String s = (metaData == null) ? "" : metaData;
+        int[] ends = (fieldEnds != null) ? fieldEnds : new int[4];
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == ':') {
+                if (n == ends.length) {
+                    ends = Arrays.copyOf(ends, n * 2);
+                }
+                ends[n++] = i;
+            }
+        }
+        if (n == ends.length) {
+            ends = Arrays.copyOf(ends, n + 1);
+        }
+        ends[n++] = s.length();
+        if (s.length() > 0) {
+            while (n > 0 && ends[n - 1] == ((n == 1) ? 0 : ends[n - 2] + 1)) {
+                n--;   // drop trailing empty fields
+            }
+        }
+        fieldEnds = ends;
+        long first = parseNumber(s, 0, ends[0], -1);
+        bid = (first < Integer.MIN_VALUE || first > Integer.MAX_VALUE) ? -1 : (int) first;
+        actionTime = (n > 1) ? parseNumber(s, ends[0] + 1, ends[1], -1) : -1;
+        fieldCount = n;
+    }
+
+    // Integer.parseInt()/Long.parseLong() syntax: an optional sign followed
+    // by decimal digits.  Short ASCII numbers, i.e. every well formed bid and
+    // actionTime, are converted in place; other digits (non-ASCII ones, long
+    // runs of leading zeros) are left to Long.parseLong().
+    private static long parseNumber(String s, int start, int end, long invalid){
+        if (start >= end) {
+            return invalid;
+        }
+        char sign = s.charAt(start);
+        int i = (sign == '-' || sign == '+') ? start + 1 : start;
+        if (i == end) {
+            return invalid;
+        }
+        long value = 0;
+        for (; i < end && end - i <= 18; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        if (i == end) {
+            return (sign == '-') ? -value : value;
+        }
+        for (int j = i; j < end; j++) {
+            if (Character.digit(s.charAt(j), 10) < 0) {
+                return invalid;
+            }
+        }
+        try {
+            return Long.parseLong(s.substring(start, end));
+        } catch (NumberFormatException e) {
+            return invalid;
         }
     }
 
@@ -9,28 +9,77 @@
  * contains valid commands.  It is important to remember that commands sent to
  * the switch will not match the online bot documentation because of the
  * addition of the bid/routing parameter in the metadata.
+ *
+ * Each switch connection has a single CommandSender and a single long-lived
+ * GatheringOutputStream.  The sender writes every pack available in the
+ * sendQueue (up to MAX_BATCH) and then flushes once, so a burst of messages
+ * costs one socket write instead of one per message.  Frame headers are
+ * collected in one buffer while large payloads, already encoded by their
+ * CmdPack, are passed to the socket as they are (a gathering write).  With -Dcw.sendBatchDelayMicros=N
+ * the sender additionally waits up to N microseconds after the first pack of a
+ * batch for more to arrive before flushing, trading latency for fewer writes.
+ * Other writers on the socket (REGISTER, protocol negotiation) go through
+ * println() and sendNow() so frames from different threads can never
+ * interleave.  Heartbeat pings come through the sendQueue like any pack.
+ *
+ * Packs are encoded as text until the switch accepts the binary protocol
+ * (see WireProtocol); enableProtocol() then switches every later frame over.
+ * When features were offered in REGISTER the sender holds back queued packs
+ * until the switch has answered (or -Dcw.negotiateTimeout ms have passed).
+ *
+ * Every pack written to the switch, except control frames such as
+ * SERVER_PING, first goes into the lane's ReplayBuffer, a whole batch at a
+ * time before any of it is written.
+ * If the switch accepted ACK1 the pack stays there until acknowledged;
+ * otherwise it is released once flushed.  A new sender starts by writing
+ * whatever the previous one left in the buffer, so packs taken from the
+ * sendQueue are not lost when the connection drops.
+ *
+ * When the connection fails the sender does not exit: it keeps draining the
+ * sendQueue, holding switch packs in the ReplayBuffer and dropping control
+ * frames, until the SwitchListener has a new connection and stops it.  So
+ * the sendQueue always has a consumer and producers blocked on it (under
+ * the BLOCK and SHED policies) never wait on a dead link.
+ *
+ * Multicast packs go out as one frame if the switch accepted MULTICAST1 and
+ * are expanded into one frame per target, before numbering, otherwise.
  */
 
 package cw_generic;
 import java.io.*;
-import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class CommandSender extends Thread {
-        private PrintWriter out;
-        private CmdPack cmdPack;
-        private String cmdOut;
-        private Command cmd;
-        private Socket socket;
+        private static final int MAX_BATCH = 1024;
+        private static final long maxBatchDelay = TimeUnit.MICROSECONDS.toNanos(Long.getLong("cw.sendBatchDelayMicros", 0));
+        private final OutputStream out;
+        private final byte[] header = new byte[WireProtocol.HEADER];
+        private boolean binary;
+        private FrameCompressor compressor;    // non-null once compression is negotiated
+        private boolean acks;                  // the switch acknowledges data frames (ACK1)
+        private boolean multicast;             // the switch expands multicast frames (MULTICAST1)
+        private boolean replayed;
+        private boolean connected = true;      // false once a write failed: packs are only held for replay
+        private static final long negotiateTimeout = Long.getLong("cw.negotiateTimeout", 2000);
+        private final CountDownLatch negotiated = new CountDownLatch(WireProtocol.offersFeatures() ? 1 : 0);
+        private final ReplayBuffer replay;
+        private final List<CmdPack> batch = new ArrayList<CmdPack>(MAX_BATCH);
+        private final List<CmdPack> frames = new ArrayList<CmdPack>(MAX_BATCH);   // batch as written, multicasts expanded
+        private SwitchConnection conn;
         public BlockingQueue<CmdPack> sendQueue = new LinkedBlockingQueue();
-        public List<OutputPack> outQueue = Collections.synchronizedList(new ArrayList<OutputPack>());
-        private boolean stop;
+        private OutputMailboxes outBoxes;
+        private OverloadGuard outputGuard;
+        private final LatencyStats latency = LatencyStats.global();
+        private volatile boolean stop;
 
-        public CommandSender(Socket socket, BlockingQueue<CmdPack> sendQueue, List<OutputPack> outQueue){
-            this.socket = socket;
+        public CommandSender(SwitchConnection conn, BlockingQueue<CmdPack> sendQueue, OutputMailboxes outBoxes, OverloadGuard outputGuard, ReplayBuffer replay) throws IOException {
+            this.conn = conn;
+            this.replay = replay;
             this.sendQueue = sendQueue;
-            this.outQueue = outQueue;
+            this.outBoxes = outBoxes;
+            this.outputGuard = outputGuard;
+            this.out = new GatheringOutputStream(conn);
             this.stop = false;
         }
 
@@ -38,27 +87,196 @@ public class CommandSender extends Thread {
             this.stop=true;
         }
 
+        // Write a single text line to the switch immediately.
+        public synchronized void println(String line) throws IOException {
+            out.write(line.getBytes("UTF-8"));
+            out.write('\n');
+            out.flush();
+        }
+
+        // Encode and write one pack immediately, in the current protocol.
+        public synchronized void sendNow(CmdPack pack) throws IOException {
+            encode(pack);
+            out.flush();
+        }
+
+        // The switch accepted the features listed in protocol.  Our
+        // confirmation, repeating them, is the last text line if BINARY1 is
+        // among them.  With ACK1 the switch is told where our numbering
+        // resumes, immediately followed by the unacknowledged packs.
+        public synchronized void enableProtocol(String protocol) throws IOException {
+            try {
+                println(WireProtocol.PROTOCOL + "<<" + protocol);
+                binary = WireProtocol.hasFeature(protocol, WireProtocol.BINARY);
+                multicast = WireProtocol.hasFeature(protocol, WireProtocol.MULTICAST_FEATURE);
+                if (WireProtocol.hasFeature(protocol, FrameCompressor.feature())) {
+                    compressor = new FrameCompressor();
+                }
+                if (WireProtocol.hasFeature(protocol, WireProtocol.REPLAY)) {
+                    sendNow(new CmdPack(new Command(WireProtocol.RESUME, replay.getStream() + ":" + replay.getFirstSeq())));
+                    this.acks = true;
+                    replay();
+                }
+            } finally {
+                negotiated.countDown();
+            }
+        }
+
+        // The switch answered without accepting anything.
+        public void endNegotiation() {
+            negotiated.countDown();
+        }
+
+        // Packs still held for replay were numbered as the previous connection
+        // wrote them; a multicast among them is expanded if this switch did
+        // not accept MULTICAST1.
+        private void encode(CmdPack pack) throws IOException {
+            if (pack.isMulticast() && !multicast) {
+                for (CmdPack p : pack.expand()) {
+                    encode(p);
+                }
+            } else if (binary) {
+                WireProtocol.writeBinary(out, pack, header, compressor);
+            } else {
+                WireProtocol.writeText(out, pack);
+            }
+        }
+
         @Override
         public void run() {
             currentThread().setName("CommandSender");
+            try {
+                negotiated.await(negotiateTimeout, TimeUnit.MILLISECONDS);
+                replay();
+            } catch (InterruptedException e) {
+                stop = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                disconnected();
+            }
             while (!stop) {
                 try {
-                    cmdPack = sendQueue.take();   //Blocks until commandPack exists
-                    if(cmdPack.getBID()>=0){
-                        cmd = cmdPack.cmd;
-                        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),"UTF-8")), true);
-                        cmdOut = cmd.getCommandType().toString()+"<<"+cmd.getMetaData();
-                        out.println(cmdOut);
-                    }else{
-                        outQueue.add(cmdPack.getOutPack());
+                    batch.add(sendQueue.take());   //Blocks until commandPack exists
+                    sendQueue.drainTo(batch, MAX_BATCH - 1);
+                    if (maxBatchDelay > 0) {
+                        awaitMore();
                     }
+                    write(batch);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
-                } catch (NullPointerException e) {
+                } catch (IOException e) {
+                    // The switch connection is gone; the SwitchListener will
+                    // notice the closed socket and reconnect, and this sender
+                    // holds packs until the new one takes over.
                     e.printStackTrace();
-                }catch(Exception e){
+                    disconnected();
+                } catch (Exception e) {
                     e.printStackTrace();
+                } finally {
+                    batch.clear();
+                }
+            }
+            synchronized (this) {
+                if (compressor != null) {
+                    compressor.end();
+                    compressor = null;
                 }
             }
         }
+
+        // Keep draining the sendQueue into the replay buffer until stopped.
+        private synchronized void disconnected() {
+            connected = false;
+            conn.close();
+        }
+
+        // Keep collecting packs until the batch is full or maxBatchDelay has
+        // passed since the first one.  Interrupted (being stopped), the packs
+        // already taken are still written or held.
+        private void awaitMore() {
+            long deadline = System.nanoTime() + maxBatchDelay;
+            long remaining;
+            while (batch.size() < MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                CmdPack p;
+                try {
+                    p = sendQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (p == null) {
+                    return;
+                }
+                batch.add(p);
+                sendQueue.drainTo(batch, MAX_BATCH - batch.size());
+            }
+        }
+
+        // Write again whatever an earlier connection on this lane did not get
+        // confirmed, oldest first.  Only done once per connection.
+        private synchronized void replay() throws IOException {
+            if (replayed) {
+                return;
+            }
+            replayed = true;
+            List<CmdPack> packs = replay.unacknowledged();
+            if (packs.isEmpty()) {
+                return;
+            }
+            for (CmdPack cmdPack : packs) {
+                encode(cmdPack);
+            }
+            out.flush();
+            if (!acks) {
+                replay.releaseAll();
+            }
+        }
+
+        // Number the whole batch in the replay buffer, then encode it and
+        // flush once.  The stream may flush part of the batch on its own, so
+        // every frame is held for replay before the first byte goes out: if
+        // the connection fails part way, the next sender writes the rest.
+        // Without a connection the frames are only held.
+        private synchronized void write(List<CmdPack> packs) throws IOException {
+            for (CmdPack cmdPack : packs) {
+                latency.recordSince(LatencyStats.Stage.SEND_WAIT, cmdPack.cmd.getCommandType(), cmdPack.getCreatedAt());
+                if(cmdPack.isMulticast() && !multicast){
+                    Collections.addAll(frames, cmdPack.expand());
+                }else if(cmdPack.getBID()>=0){
+                    frames.add(cmdPack);
+                }else{
+                    addOutput(cmdPack);
+                }
+            }
+            if (frames.isEmpty()) {
+                return;
+            }
+            try {
+                for (CmdPack frame : frames) {
+                    if (!WireProtocol.isControl(String.valueOf(frame.cmd.getCommandType()))) {
+                        replay.add(frame);
+                    }
+                }
+                if (!connected) {
+                    return;
+                }
+                for (CmdPack frame : frames) {
+                    encode(frame);
+                }
+            } finally {
+                frames.clear();
+            }
+            out.flush();
+            if (!acks) {
+                replay.releaseAll();
+            }
+        }
+
+        // The mailboxes are only drained by browsers polling fetchResponse, so
+        // full mailboxes can never block; the pack is dropped and counted instead.
+        private void addOutput(CmdPack pack) {
+            if (!outBoxes.offer(pack.getOutPack())) {
+                outputGuard.reject(false, pack.getBID());
+            }
+        }
     }
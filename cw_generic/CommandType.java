@@ -0,0 +1,90 @@
+/*
+ * CommandType enumerates every command the connectFour game server knows how
+ * to process.  The command type is resolved into a CommandType once, at
+ * ingress: the SwitchListener matches the type's bytes (or a binary frame's
+ * opcode) without building a String, and the Thrift interface and the timers
+ * name the CommandType directly.  From then on the CommandProcessor
+ * dispatches on the opcode instead of comparing strings.  Any command type
+ * not listed here resolves to UNKNOWN.
+ */
+
+package cw_generic;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public enum CommandType {
+    LOGIN_INFORM,
+    GAME_INITIALIZE,
+    ACTION_REPLY,
+    DISCONNECT_BOT_REMOTE,
+    CHALLENGE,
+    SERVER_MESSAGE,
+    WEB_START_GAME,
+    SET_MODE,
+    CLEAN_OUTPUT,
+    MOVE_TIMEOUT,       // server side move deadline expired (internal)
+    UNKNOWN;
+
+    private static final Map<String, CommandType> byName = new HashMap<String, CommandType>();
+    private static final byte[][] wireNames = new byte[values().length][];
+    private static final CommandType[] byOpcode = new CommandType[WireProtocol.OPCODE + 1];
+    private static final CommandType[][] byLength = new CommandType[64][];     // known types by wire name length
+
+    static {
+        for (CommandType t : values()) {
+            if (t != UNKNOWN) {
+                byName.put(t.name(), t);
+                wireNames[t.ordinal()] = t.name().getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+        for (int len = 0; len < byLength.length; len++) {
+            List<CommandType> same = new ArrayList<CommandType>();
+            for (CommandType t : values()) {
+                if (wireNames[t.ordinal()] != null && wireNames[t.ordinal()].length == len) {
+                    same.add(t);
+                }
+            }
+            byLength[len] = same.toArray(new CommandType[same.size()]);
+        }
+        for (int op = 0; op < byOpcode.length; op++) {
+            byOpcode[op] = lookup(WireProtocol.typeOf(op));
+        }
+    }
+
+    // Resolve a wire command type.  Never returns null.
+    public static CommandType lookup(String type) {
+        if (type == null) {
+            return UNKNOWN;
+        }
+        CommandType t = byName.get(type);
+        return (t == null) ? UNKNOWN : t;
+    }
+
+    // Resolve a wire command type directly from the bytes in buf[start, end),
+    // without building a String.  Never returns null.
+    public static CommandType lookup(ByteBuffer buf, int start, int end) {
+        int len = end - start;
+        if (len < 0 || len >= byLength.length) {
+            return UNKNOWN;
+        }
+        next:
+        for (CommandType t : byLength[len]) {
+            byte[] name = wireNames[t.ordinal()];
+            for (int i = 0; i < len; i++) {
+                if (buf.get(start + i) != name[i]) {
+                    continue next;
+                }
+            }
+            return t;
+        }
+        return UNKNOWN;
+    }
+
+    // Resolve the opcode of a binary frame (see WireProtocol); the flags are
+    // ignored.  Never returns null.
+    public static CommandType lookup(int opcode) {
+        return byOpcode[opcode & WireProtocol.OPCODE];
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * FrameDecoder splits the raw byte stream from the switch into commands
+ * without first decoding it into Strings.  It starts in text mode, where a
+ * frame is one line,
+ *
+ *     TYPE<<metadata\n
+ *
+ * and the decoder finds the '\n' and the first "<<" at the byte level.  For
+ * each complete frame the Handler is given the decoder's buffer together with
+ * the byte offsets of the type and metadata, so it can resolve the type and
+ * copy out only what it needs; the buffer is reused by the next read.  As with the old String.split("<<"), metadata
+ * ends at a second "<<" if there is one.  A trailing '\r' is dropped.
+ *
+ * After setBinary() the decoder reads length-prefixed WireProtocol frames
+ * instead, starting with the very next byte (even inside the current read),
+ * and reports them through Handler.binaryFrame().
+ *
+ * Bytes are read straight into the decoder's direct buffer (see buffer()).
+ * A frame cut in two by a read stays in the buffer until the rest arrives;
+ * the part of a text frame already searched is not searched again.  The
+ * buffer grows up to MAX_FRAME for unusually long frames; a longer frame is a
+ * protocol error.
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.nio.*;
+
+public class FrameDecoder {
+
+    public interface Handler {
+        // Offsets are absolute indices into buf; metaStart is -1 if the frame
+        // has no "<<".  The buffer contents are only valid during the call.
+        void frame(ByteBuffer buf, int typeStart, int typeEnd, int metaStart, int metaEnd);
+
+        // A binary frame.  typeStart/typeEnd are -1 unless the opcode (without
+        // its flags) is 0.  The payload may still be compressed, and starts
+        // with the target bids if the MULTICAST flag is set.
+        void binaryFrame(ByteBuffer buf, int opcode, int bid, int actionTime, int typeStart, int typeEnd, int payloadStart, int payloadEnd);
+    }
+
+    public static final int MAX_FRAME = 1 << 20;
+
+    private ByteBuffer in;
+    private int scanned;       // bytes of the pending partial text frame already searched for '\n'
+    private boolean binary;
+
+    public FrameDecoder(int initialCapacity) {
+        in = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    // Decode every following frame as binary.  May be called from a Handler.
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Buffer to read into (write mode).  Always has room for at least one byte.
+    public ByteBuffer buffer() throws IOException {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_FRAME + WireProtocol.HEADER) {
+                throw new IOException("Frame from switch exceeds " + MAX_FRAME + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(MAX_FRAME + WireProtocol.HEADER, in.capacity() * 2));
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        return in;
+    }
+
+    // Hand every complete frame in the buffer to h and keep any partial frame
+    // for the next read.  Returns the number of frames decoded.
+    public int decode(Handler h) throws IOException {
+        int frames = 0;
+        int limit = in.position();
+        int start = 0;
+        int next;
+        while ((next = binary ? binaryFrame(h, start, limit) : textFrame(h, start, limit)) >= 0) {
+            start = next;
+            frames++;
+        }
+        // Move the partial frame (if any) to the front of the buffer.
+        if (start > 0) {
+            in.flip();
+            in.position(start);
+            in.compact();
+        }
+        scanned = binary ? 0 : limit - start;
+        return frames;
+    }
+
+    // Decode the text frame at start; returns the start of the next frame,
+    // or -1 if the frame is not complete yet.
+    private int textFrame(Handler h, int start, int limit) {
+        for (int i = Math.max(start, scanned); i < limit; i++) {
+            if (in.get(i) != '\n') {
+                continue;
+            }
+            int end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+            int sep = indexOfSeparator(start, end);
+            if (sep < 0) {
+                h.frame(in, start, end, -1, -1);
+            } else {
+                int metaEnd = indexOfSeparator(sep + 2, end);
+                h.frame(in, start, sep, sep + 2, (metaEnd < 0) ? end : metaEnd);
+            }
+            return i + 1;
+        }
+        return -1;
+    }
+
+    private int binaryFrame(Handler h, int start, int limit) throws IOException {
+        if (limit - start < 4) {
+            return -1;
+        }
+        int length = in.getInt(start);
+        if (length < WireProtocol.HEADER - 4 || length > MAX_FRAME) {
+            throw new IOException("Bad binary frame length " + length);
+        }
+        int end = start + 4 + length;
+        if (end > limit) {
+            return -1;
+        }
+        int opcode = in.get(start + 4) & 0xff;
+        int bid = in.getInt(start + 5);
+        int actionTime = in.getInt(start + 9);
+        int p = start + WireProtocol.HEADER;
+        int typeStart = -1;
+        int typeEnd = -1;
+        if ((opcode & WireProtocol.OPCODE) == 0) {
+            typeStart = p + 1;
+            typeEnd = typeStart + (in.get(p) & 0xff);
+            if (typeEnd > end) {
+                throw new IOException("Bad binary frame type length");
+            }
+            p = typeEnd;
+        }
+        h.binaryFrame(in, opcode, bid, actionTime, typeStart, typeEnd, p, end);
+        return end;
+    }
+
+    // Offset of the next "<<" in [from, to), or -1.
+    private int indexOfSeparator(int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if (in.get(i) == '<' && in.get(i + 1) == '<') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
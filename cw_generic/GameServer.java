@@ -4,7 +4,8 @@
  * commandQueue data structure stores all incomming commands for processing.
  * There is also a sendQueue for messages to be sent to the switch as well as
  * to individual bots (via the switch).  Commands destined for the browser
- * (via the Thrift interface) are placed in the outQueue construct.  GameServer
+ * (via the Thrift interface) are placed in the human's mailbox in the
+ * outBoxes construct (see OutputMailboxes).  GameServer
  * is also responsible for maintaining a list of all connected bots and ongoing
  * games.  These lists grow and shrink in response to bot logins and
  * disconnections.
@@ -13,43 +14,109 @@
  * the appropriate routine.  It is important to note that the CommandProcessor
  * is a single threaded object.  Only one command can be acted upon
  * simultaneously.  This reduces the risk of concurrency issues.
+ * When processorShards is greater than one, the CommandProcessor becomes a
+ * router instead: commands belonging to a game are handed to one of N
+ * single-threaded CommandShard loops chosen by game id, so each game (and
+ * every bot in it) is still processed in order by exactly one thread.
+ * Commands which touch more than one game (logins, disconnects, CHALLENGE,
+ * ...) are executed by the router only after every shard has drained.
  * GameServer subroutines are fairly self documenting.  Login functions add new
  * bot instances to the bots array.  Disconnections must be robustly handled
  * to prevent alienating data.  With each CHALLENGE command, new matches are
  * initiated for all idle bots.
  * As mentioned elsewhere, Thrift is used to communicate directly with the web
  * browser.  All thrift functions are indicated in the function comments.
+ * Browsers may instead receive their output pushed over Server-Sent Events
+ * from the optional PushServer (-Dcw.pushPort).
  * Thrift calls are not guaranteed to be thread safe so extra care is
  * required to reduce the risk of concurrency issues.  Additional information
  * on Thrift can be found here: http://incubator.apache.org/thrift/.
  */
 package cw_generic;
 
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TBinaryProtocol.Factory;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TNonblockingServer;
 import org.apache.thrift.server.TServer;
 import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
 import org.apache.thrift.transport.TServerSocket;
 import org.apache.thrift.transport.TTransportException;
 import connectFourServer.gen.WebInterface;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 public class GameServer {
 
-    public final BlockingQueue<Command> commandQueue = new LinkedBlockingQueue();                                    // List of all commands to be processed by the commandProcessor()
-    public final BlockingQueue<CmdPack> sendQueue = new LinkedBlockingQueue();                                    // List of commands to be sent to the switch and/or bots
-    public final List<OutputPack> outQueue = Collections.synchronizedList(new ArrayList<OutputPack>());    // List of all messages destined for the web (via Thrift)
+    private final OverloadGuard commandGuard = newGuard("commandQueue", "cw.commandQueuePolicy", 0);       // What to do when the commandQueue is full
+    private final OverloadGuard sendGuard = newGuard("sendQueue", "cw.sendQueuePolicy", 0);                // What to do when the sendQueue is full
+    private final OverloadGuard outputGuard = newGuard("outQueue", "cw.outQueuePolicy", Integer.getInteger("cw.outQueueCapacity", 65536));   // Bound and policy for the web output mailboxes
+    private final OverloadGuard[] guards = { commandGuard, sendGuard, outputGuard };
+    public final BlockingQueue<Command> commandQueue = new GuardedQueue<Command>(newRingBuffer("cw.commandQueueCapacity"), commandGuard,
+            cmd -> isLowPriority(cmd.getCommandType()), cmd -> cmd.getBID());                             // List of all commands to be processed by the commandProcessor()
+    public final RoutedQueue<CmdPack> sendQueue = newSendQueue(Integer.getInteger("cw.switchConnections", 1));  // List of commands to be sent to the switch and/or bots, one lane per switch connection
+    public final OutputMailboxes outBoxes;                                                                 // Messages destined for the web (via Thrift), one mailbox per human
     public final List<Integer> activeQueue = Collections.synchronizedList(new ArrayList<Integer>());       // List of all active authors challenging their bot.
     private static final Logger logger = Logger.getLogger(GameServer.class);
-    static private List<BotManager> bots = Collections.synchronizedList(new ArrayList<BotManager>());    // Actively maintained to include all online bots.
-    static private List<GameManager> games = Collections.synchronizedList(new ArrayList<GameManager>());   // All currently active games.
+    static private BotRegistry bots = new BotRegistry();                                                  // Actively maintained to include all online bots, indexed by bid and gid.
+    static private IntObjectMap<GameManager> games = new IntObjectMap<GameManager>(1024);                  // All currently active games, indexed by gid.
     private long challengeInterval = 60000;  // Sets the frequency of CHALLENGE events in miliseconds
+    private int processorShards = 1;         // Number of CommandShard event loops.  1 keeps the single CommandProcessor.
+    private int commandBatch = 256;          // Maximum number of commands drained from the commandQueue at once.
+    private long timerTick = 10;             // Resolution of the TimerWheel in miliseconds
+    private long deadlineSlack = 2000;       // Grace added to a bot's actionTime before the server side deadline fires
+    private final LatencyStats latency = LatencyStats.global();   // Queue wait, handler and send wait histograms per command type
+    private TimerWheel timerWheel;           // Drives every server timer: CHALLENGE, CLEAN_OUTPUT, pings and move deadlines
     private long outputPurgeInterval = 5000;  // Sets the expiration time for web-output commands in miliseconds
+    private long fetchWait = 0;              // How long an empty fetchResponse waits for output (long poll) in miliseconds.  0 returns at once.
+    private int pushPort = 0;                // Port of the Server-Sent Events push channel for browsers.  0 disables it.
+    private String thriftMode = "threadpool";  // Thrift server for the web interface: threadpool, nonblocking or hsha
+    private int thriftWorkers = 8;           // Worker threads of the hsha Thrift server
+    private long pushKeepAlive = 15000;      // Longest silence on a push stream before a keep-alive comment is sent, in miliseconds
+    private int pushMaxStreams = 10000;      // Most push streams open at once; more are refused with 503
+    private PushServer pushServer;           // The push channel, if pushPort is set
+
+    // commandQueue and sendQueue are preallocated MPSC ring buffers.  Capacity
+    // and the consumer wait strategy (SPIN, YIELD or PARK) are system properties.
+    private static <E> BlockingQueue<E> newRingBuffer(String capacityProperty) {
+        return new RingBufferQueue<E>(Integer.getInteger(capacityProperty, 65536),
+                RingBufferQueue.WaitStrategy.valueOf(System.getProperty("cw.waitStrategy", "PARK")));
+    }
+
+    // One sendQueue lane per switch connection, chosen by bid so that each
+    // bot's messages stay in order on a single connection.
+    private RoutedQueue<CmdPack> newSendQueue(int connections) {
+        List<BlockingQueue<CmdPack>> lanes = new ArrayList<BlockingQueue<CmdPack>>();
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            lanes.add(new GuardedQueue<CmdPack>(newRingBuffer("cw.sendQueueCapacity"), sendGuard,
+                    pack -> isLowPriority(pack.cmd.getCommandType()), pack -> pack.getBID()));
+        }
+        return new RoutedQueue<CmdPack>(lanes, pack -> pack.getBID());
+    }
+
+    // Overload policy (BLOCK, SHED or DISCONNECT) for one bounded queue.
+    // SHED is the default; see OverloadGuard for why no policy blocks forever.
+    private static OverloadGuard newGuard(String name, String policyProperty, int capacity) {
+        return new OverloadGuard(name, OverloadGuard.Policy.valueOf(System.getProperty(policyProperty, "SHED")), capacity);
+    }
+
+    // Messages which may be shed under overload: chatter and timer ticks that
+    // will be regenerated anyway.
+    private static boolean isLowPriority(String type) {
+        return "SERVER_MESSAGE".equals(type) || "CHALLENGE".equals(type) || "CLEAN_OUTPUT".equals(type);
+    }
 
     public static void main(String args[]) throws Exception {
         PropertyConfigurator.configure(args[0]);
@@ -58,13 +125,25 @@ public class GameServer {
 
     public GameServer(String[] args) throws Exception {
         initialize(args);
+        registerHandlers();
+        latency.register(logger);
         //Launch all supporting threads:
-        //Contact, Authenticate & Listen to the switch.
-        new Thread(new SwitchListener(this.commandQueue, this.sendQueue, this.outQueue, logger), "SwitchListener").start();
+        timerWheel = new TimerWheel(this.timerTick, logger);
+        timerWheel.start();
+        outBoxes = new OutputMailboxes(outputGuard.getCapacity(), timerWheel);
+        //Contact, Authenticate & Listen to the switch, over cw.switchConnections parallel connections.
+        for (int i = 0; i < sendQueue.lanes(); i++) {
+            ServerThreads.start(new SwitchListener(this.commandQueue, this.sendQueue.lane(i), this.outBoxes, this.outputGuard, timerWheel, logger), "SwitchListener-" + i);
+        }
         new Thread(new ThriftServer(), "ThriftServer").start();
+        if (this.pushPort > 0) {
+            pushServer = new PushServer();
+            pushServer.start();
+        }
+        startShards();
         new Thread(new CommandProcessor(), "CommandProcessor").start();
-        new Thread(new OutputCleaner(this.commandQueue, logger, this.outputPurgeInterval), "OutputCleaner").start();
-        new Thread(new ChallengeTimer(this.commandQueue, logger, this.challengeInterval), "ChallengeTimer").start();
+        new OutputCleaner(this.commandQueue, logger, this.outputPurgeInterval).schedule(timerWheel);
+        new ChallengeTimer(this.commandQueue, logger, this.challengeInterval).schedule(timerWheel);
     }
 
     // Set several parameters defined at the command line.
@@ -75,59 +154,258 @@ public class GameServer {
             System.out.println("Problem loading ... something " + e);
             e.printStackTrace(System.out);
         }
+        // Optional tuning parameters are passed as system properties (-Dcw.name=value).
+        this.processorShards = Integer.getInteger("cw.processorShards", this.processorShards);
+        this.commandBatch = Math.max(1, Integer.getInteger("cw.commandBatch", this.commandBatch));
+        this.timerTick = Long.getLong("cw.timerTick", this.timerTick);
+        this.deadlineSlack = Long.getLong("cw.deadlineSlack", this.deadlineSlack);
+        this.fetchWait = Long.getLong("cw.fetchWaitMillis", this.fetchWait);
+        this.pushPort = Integer.getInteger("cw.pushPort", this.pushPort);
+        this.pushKeepAlive = Math.max(1, Long.getLong("cw.pushKeepAliveMillis", this.pushKeepAlive));
+        this.pushMaxStreams = Math.max(1, Integer.getInteger("cw.pushMaxStreams", this.pushMaxStreams));
+        this.thriftMode = System.getProperty("cw.thriftServer", this.thriftMode).toLowerCase();
+        this.thriftWorkers = Math.max(1, Integer.getInteger("cw.thriftWorkers", this.thriftWorkers));
+        if ((this.thriftMode.equals("nonblocking") || this.thriftMode.equals("hsha")) && this.fetchWait > 0) {
+            //A parked fetchResponse would hold the selector or a pool worker.
+            logger.warn("cw.fetchWaitMillis ignored with the " + this.thriftMode + " Thrift server; use cw.pushPort instead.");
+            this.fetchWait = 0;
+        }
     }
 
     //Code Based on tutorial @ http://skorage.org/2009/03/08/simple-thrift-tutorial/
+    //-Dcw.thriftServer picks the server:
+    //  threadpool   one thread per browser connection (default)
+    //  nonblocking  a single selector thread reads framed requests and runs
+    //               every call itself
+    //  hsha         a selector thread reads framed requests and hands the
+    //               calls to a fixed pool of -Dcw.thriftWorkers threads
+    //The selector based servers keep thousands of idle browser connections
+    //on one thread, but only speak TFramedTransport.  The current browser
+    //client sends unframed TBinaryProtocol, so it cannot use them: keep the
+    //threadpool server until the client wraps its transport in
+    //TFramedTransport.  The Thrift version is pinned in pom.xml and
+    //connectFourServer/gen must be generated with it.
     public class ThriftServer extends Thread {
 
         @Override
         public void run() {
             try {
-                TServerSocket serverTransport = new TServerSocket(7911);
                 WebInterface.Processor processor = new WebInterface.Processor(new WebInterfaceImpl());
                 Factory protFactory = new TBinaryProtocol.Factory(true, true);
-                TServer server = new TThreadPoolServer(processor, serverTransport, protFactory);
-                logger.info("Starting server on port 7911 ...");
+                TServer server;
+                if (thriftMode.equals("nonblocking") || thriftMode.equals("hsha")) {
+                    server = newSelectorServer(processor, protFactory);
+                } else {
+                    if (!thriftMode.equals("threadpool")) {
+                        logger.warn("Unknown cw.thriftServer " + thriftMode + ", using threadpool.");
+                    }
+                    server = newThreadPoolServer(processor, protFactory);
+                }
                 server.serve();
             } catch (TTransportException e) {
                 e.printStackTrace();
             }
         }
+
+        private TServer newThreadPoolServer(WebInterface.Processor processor, Factory protFactory) throws TTransportException {
+            TServerSocket serverTransport = new TServerSocket(7911);
+            TThreadPoolServer.Args args = new TThreadPoolServer.Args(serverTransport)
+                    .processor(processor).protocolFactory(protFactory);
+            ExecutorService executor = ServerThreads.newPerTaskExecutor();
+            if (executor != null) {
+                args.executorService(executor);     // One virtual thread per browser connection.
+            }
+            logger.info("Starting server on port 7911 (" + (executor != null ? "virtual" : "platform") + " threads) ...");
+            return new TThreadPoolServer(args);
+        }
+
+        private TServer newSelectorServer(WebInterface.Processor processor, Factory protFactory) throws TTransportException {
+            TNonblockingServerSocket serverTransport = new TNonblockingServerSocket(7911);
+            logger.warn("The " + thriftMode + " Thrift server only accepts framed clients (TFramedTransport).");
+            if (thriftMode.equals("hsha")) {
+                logger.info("Starting half-sync/half-async server on port 7911 (" + thriftWorkers + " workers) ...");
+                return new THsHaServer(new THsHaServer.Args(serverTransport).minWorkerThreads(thriftWorkers).maxWorkerThreads(thriftWorkers)
+                        .processor(processor).protocolFactory(protFactory).transportFactory(new TFramedTransport.Factory()));
+            }
+            logger.info("Starting nonblocking server on port 7911 ...");
+            return new TNonblockingServer(new TNonblockingServer.Args(serverTransport)
+                    .processor(processor).protocolFactory(protFactory).transportFactory(new TFramedTransport.Factory()));
+        }
+    }
+
+    //Server-Sent Events channel to the browser, as an alternative to polling
+    //fetchResponse.  GET /events?bid=N opens a text/event-stream for human -N
+    //and every command for that human (GAME_INITIALIZE, ACTION_REQUEST,
+    //GAME_REPORT, ...) is written to it as soon as the CommandSender delivers
+    //it, as "event: TYPE" and "data: TYPE<<metadata" (the same string
+    //fetchResponse returns).  Both channels take from the same mailbox, so
+    //each command reaches the browser once, whichever way it is collected.
+    //Moves still go up through Thrift (makeMove).  Every write to an open
+    //stream, events or keep-alive, counts as activity, like polling; a
+    //stream writes at least every half challengeInterval so its human is
+    //never reaped as idle.  Each stream holds a handler thread, so large
+    //numbers of spectators are best served with -Dcw.virtualThreads=true.
+    //Streams are only opened for humans who are online (404 otherwise), and
+    //end once the human is gone: disconnecting drops the mailbox, which wakes
+    //the stream, and every keep-alive checks again.  At most
+    //-Dcw.pushMaxStreams streams are open at once; beyond that the browser
+    //gets 503 and should fall back to polling or retry later.
+    public class PushServer {
+        private final Semaphore streams = new Semaphore(pushMaxStreams);
+        private HttpServer server;
+        private ExecutorService executor;
+
+        public void start() {
+            try {
+                server = HttpServer.create(new InetSocketAddress(pushPort), 0);
+                server.createContext("/events", exchange -> {
+                    try {
+                        stream(exchange);
+                    } catch (IOException e) {
+                        // The browser went away.
+                    } finally {
+                        exchange.close();
+                    }
+                });
+                executor = ServerThreads.newPerTaskExecutor();
+                boolean virtual = (executor != null);
+                if (!virtual) {
+                    executor = Executors.newCachedThreadPool();
+                }
+                server.setExecutor(executor);
+                server.start();
+                logger.info("Starting push server on port " + pushPort + " (" + (virtual ? "virtual" : "platform") + " threads) ...");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Close the port and end every open stream.
+        public void stop() {
+            if (server != null) {
+                server.stop(0);
+                server = null;
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+
+        private void stream(HttpExchange exchange) throws IOException {
+            int bid = parseBID(exchange.getRequestURI().getRawQuery());
+            if (bid <= 0 || !"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (botByBID(-bid) == null) {
+                exchange.sendResponseHeaders(404, -1);   //No such human online
+                return;
+            }
+            if (!streams.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            try {
+                send(exchange, bid);
+            } finally {
+                streams.release();
+            }
+        }
+
+        private void send(HttpExchange exchange, int bid) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", System.getProperty("cw.pushAllowOrigin", "*"));
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write(": connected\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            logger.info("Push stream opened for human " + (-bid));
+            activeQueue.add(-bid); //Human is Active!
+            long wait = Math.max(1, Math.min(pushKeepAlive, challengeInterval / 2));   //Keep-alives must beat the reaper
+            try {
+                while (botByBID(-bid) != null) {
+                    List<OutputPack> packs = outBoxes.take(-bid, wait);
+                    if (packs.isEmpty() && botByBID(-bid) == null) {
+                        break;      //Disconnected while we waited
+                    }
+                    StringBuilder sb = new StringBuilder();
+                    for (OutputPack p : packs) {
+                        String c = p.getCmd();
+                        int sep = c.indexOf("<<");
+                        sb.append("event: ").append(sep < 0 ? c : c.substring(0, sep)).append('\n');
+                        sb.append("data: ").append(c.replace("\n", "\ndata: ")).append("\n\n");
+                    }
+                    if (packs.isEmpty()) {
+                        sb.append(": keep-alive\n\n");    //Also how a closed stream is noticed
+                    }
+                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    activeQueue.add(-bid); //Human is Active!
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                logger.info("Push stream closed for human " + (-bid));
+            }
+        }
+
+        private int parseBID(String query) {
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    if (param.startsWith("bid=")) {
+                        try {
+                            return Integer.parseInt(param.substring(4));
+                        } catch (NumberFormatException e) {
+                            return -1;
+                        }
+                    }
+                }
+            }
+            return -1;
+        }
     }
 
     //Code Based on tutorial @ http://skorage.org/2009/03/08/simple-thrift-tutorial/
     //All commands originate from the web interface.
     //All commands except "fetch_response" are one directional (no response required).
-    //Fetch response looks through a queue of outgoing commands maintained by
-    //the game server and returns with any which belong to the caller.
-    //Sychronization is required because Thrift is not guaranteed to be thread
-    //safe.
+    //Fetch response empties the caller's mailbox of outgoing commands
+    //maintained by the game server.  Each mailbox is synchronized on its own
+    //because Thrift is not guaranteed to be thread safe.
+    //With -Dcw.fetchWaitMillis=N a fetch that finds no output for an online
+    //human waits up to N ms for some (long poll), and returns as soon as the
+    //CommandSender delivers it.  The Thrift interface is unchanged; browsers
+    //simply get fewer empty answers.  Each waiting fetch holds its Thrift
+    //connection thread, so long polls are best combined with
+    //-Dcw.virtualThreads=true.
     class WebInterfaceImpl implements connectFourServer.gen.WebInterface.Iface {
 
         @Override
         public void setMode(int bid, int mode) throws TException {
-            Command cmd = new Command("SET_MODE", bid + ":null:" + mode);
+            Command cmd = new Command(CommandType.SET_MODE, bid + ":null:" + mode);
             commandQueue.add(cmd);
             logger.info("setMode() fired!");
         }
 
         @Override
         public void startGame(int bid) throws TException {
-            Command cmd = new Command("WEB_START_GAME", Integer.toString(bid));
+            Command cmd = new Command(CommandType.WEB_START_GAME, Integer.toString(bid));
             commandQueue.add(cmd);
             logger.info("startGame() fired!");
         }
 
         @Override
         public void makeMove(int bid, int move) throws TException {
-            Command cmd = new Command("ACTION_REPLY", (-bid) + ":null:" + move);
+            Command cmd = new Command(CommandType.ACTION_REPLY, (-bid) + ":null:" + move);
             commandQueue.add(cmd);
             logger.info("makeMove() " + move + " fired!");
         }
 
         @Override
         public void abortGame(int bid) throws TException {
-            Command cmd = new Command("DISCONNECT_BOT_REMOTE", Integer.toString(-bid));
+            Command cmd = new Command(CommandType.DISCONNECT_BOT_REMOTE, Integer.toString(-bid));
             commandQueue.add(cmd);
             logger.info("abortGame() fired!");
         }
@@ -135,45 +413,36 @@ public class GameServer {
         @Override
         public String fetchResponse(int bid) throws TException {
             activeQueue.add(-bid); //Human is Active!
-            String response = "";
-            List<OutputPack> remQueue = Collections.synchronizedList(new ArrayList<OutputPack>());
-            //Lock on outQueue to prevent simultaneous access/modification.
-            synchronized (outQueue) {
-                for (OutputPack p : outQueue) {
-                    if (p.getBID() == -bid) {
-                        //Multiple commands can be separated by a "&&" this ONLY
-                        //Applies for gameserver to web communication!
-                        response = response.concat(p.getCmd() + "&&");
-                        remQueue.add(p);
-                    }
-                }
-                outQueue.removeAll(remQueue);
+            StringBuilder response = new StringBuilder();
+            List<OutputPack> packs;
+            try {
+                packs = (botByBID(-bid) != null) ? outBoxes.take(-bid, fetchWait) : outBoxes.take(-bid);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                packs = outBoxes.take(-bid);
+            }
+            for (OutputPack p : packs) {
+                //Multiple commands can be separated by a "&&" this ONLY
+                //Applies for gameserver to web communication!
+                response.append(p.getCmd()).append("&&");
             }
             logger.info("fetchResponse() fired!");
-            return response;
+            return response.toString();
         }
     }
 
-    /* Remove all expired commands in the outQueue construct.  outQueue can be
-     * modified by multiple threads, so synchronization is required for data
-     * consistency.  Disconnect any bot/human  which fails to "pick up its mail"
+    /* Remove all expired commands in the outBoxes construct.  Only mailboxes
+     * whose expiry timeout fired are visited, and no lock is held while
+     * disconnecting.  Disconnect any bot/human which fails to "pick up its
+     * mail"; mail for a human who is already gone is simply dropped.
      */
     private void cleanOutput() {
-        synchronized (outQueue) {
-            List<BotManager> toRemove = Collections.synchronizedList(new ArrayList<BotManager>());
-            long currentTime = System.currentTimeMillis();
-            for (OutputPack p : outQueue) {
-                if (p.getEXP() <= currentTime) {
-                    BotManager human;
-                    if ((human = botByBID(p.getBID())) != null) {
-                        if (!toRemove.contains(human)) {
-                            toRemove.add(human);
-                        }
-                    }
-                }
-            }
-            for (BotManager b : toRemove) {
-                disconnect(b);
+        for (int bid : outBoxes.expired(System.currentTimeMillis())) {
+            BotManager human;
+            if ((human = botByBID(bid)) != null) {
+                disconnect(human);
+            } else {
+                outBoxes.drop(bid);
             }
         }
     }
@@ -183,53 +452,54 @@ public class GameServer {
      * equal to -bid.  Each human can only challenge their own bot online.
      */
     private void webStartGame(Command cmd) {
-        int bid = Integer.parseInt(cmd.getMetaData());
+        int bid = cmd.getBID();
+        if (bid <= 0) {
+            logger.warn("Invalid WEB_START_GAME command received.");
+            return;
+        }
         int hid = -bid; //HumanID
         BotManager human;
         if ((human = botByBID(hid)) != null) {
             disconnect(human);
         }
-        synchronized (outQueue) {
-            BotManager bot;
-            if ((bot = botByBID(bid)) != null) {
-                if (!bot.isBusy()) {
-                    human = new BotManager(hid, 1, "human");
-                    bots.add(human);
-                    GameManager g = new GameManager(bot.getBID(), human.getBID());
-                    games.add(g);
-                    bot.setBusy(true);
-                    bot.setGID(g.getGID());
-                    human.setBusy(true);
-                    human.setGID(g.getGID());
-                    g.setReady(human.getBID());
-                    sendQueue.add(new CmdPack(new Command("GAME_INITIALIZE", g.formGameInitializeCmd(bot.getBID())), bot.getBID(), 5000));
-                    sendQueue.add(new CmdPack(new Command("GAME_INITIALIZE", g.formGameInitializeCmd(human.getBID())), human.getBID(), 5000));
-                    logger.info("Human : " + hid + " logged in.");
-                } else {
-                    sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "Bot " + bot.getBID() + " is Busy!"), hid));
-                }
+        BotManager bot;
+        if ((bot = botByBID(bid)) != null) {
+            if (!bot.isBusy()) {
+                human = new BotManager(hid, 1, "human");
+                bots.add(human);
+                GameManager g = new GameManager(bot.getBID(), human.getBID());
+                games.put(g.getGID(), g);
+                bot.setBusy(true);
+                bots.setGame(bot, g.getGID());
+                human.setBusy(true);
+                bots.setGame(human, g.getGID());
+                g.setReady(human.getBID());
+                sendToBot(new Command("GAME_INITIALIZE", g.formGameInitializeCmd(bot.getBID())), bot.getBID(), 5000);
+                sendToBot(new Command("GAME_INITIALIZE", g.formGameInitializeCmd(human.getBID())), human.getBID(), 5000);
+                logger.info("Human : " + hid + " logged in.");
             } else {
-                sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "Bot " + bid + " is not Online!"), hid));
+                sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "Bot " + bot.getBID() + " is Busy!"), hid));
             }
+        } else {
+            sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "Bot " + bid + " is not Online!"), hid));
         }
     }
 
     // Login a connecting bot.
     private void login(Command cmd) {
         //Protect duplicate logins even if this should be prevented by the switch.
-        String[] metaData = cmd.getMetaData().split(":");
-        if (!metaData.equals(null) && metaData.length >= 1) {
-            int bid = Integer.parseInt(metaData[0]); //The first parameter for any bot driven command should be bid.  It is inserted by the switch during the command forwarding routine.
-            int mode = Integer.parseInt(getParamValue("mode", metaData[1]));
+        if (cmd.getBID() != -1 && cmd.getFieldCount() >= 2) {
+            int bid = cmd.getBID(); //The first parameter for any bot driven command should be bid.  It is inserted by the switch during the command forwarding routine.
+            int mode = Integer.parseInt(getParamValue("mode", cmd.getField(1)));
             String language = "null"; //Currently useless.
             BotManager b = new BotManager(bid, mode, language);
             bots.add(b);
             sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "GameServer Confirmed Connection"), bid, 0));
             GameManager g = new GameManager(b.getBID(), 0);
-            games.add(g);
-            b.setGID(g.getGID());
+            games.put(g.getGID(), g);
+            bots.setGame(b, g.getGID());
             b.setBusy(true);
-            sendQueue.add(new CmdPack(new Command("GAME_INITIALIZE", g.formGameInitializeCmd()), b.getBID(), 5000));
+            sendToBot(new Command("GAME_INITIALIZE", g.formGameInitializeCmd()), b.getBID(), 5000);
             logger.info("Bot : " + bid + " logged in.");
         }
     }
@@ -237,9 +507,9 @@ public class GameServer {
     // Triggered upon receipt of a GAME_INITIALIZE command which has been echoed
     // by a bot.
     private void setReadyStatus(Command cmd) {
-        String[] metaData = cmd.getMetaData().split(":");
-        if (null != metaData && metaData.length >= 1) {
-            int bid = Integer.parseInt(metaData[0]); //The first parameter for any bot driven command should be bid.  It is inserted by the switch during the command forwarding routine.
+        if (cmd.getBID() != -1) {
+            clearDeadline(cmd.getBID());
+            int bid = cmd.getBID(); //The first parameter for any bot driven command should be bid.  It is inserted by the switch during the command forwarding routine.
             BotManager b;
             if ((b = botByBID(bid)) != null) {
                 int gid = b.getGID();
@@ -248,7 +518,7 @@ public class GameServer {
                     g.setReady(bid);
                     if (g.botsReady()) {
                         //Send Action Requests
-                        sendQueue.add(new CmdPack(new Command("ACTION_REQUEST", g.getLastMove()), g.getTurn(), 5000));
+                        sendToBot(new Command("ACTION_REQUEST", g.getLastMove()), g.getTurn(), 5000);
                     }
                 } else {
                     //CMD: Bot is not involved in a game - message discarded
@@ -278,20 +548,20 @@ public class GameServer {
      * game reports to both bots.
      */
     private void actionReply(Command cmd) {
-        String[] metaData = cmd.getMetaData().split(":");
         BotManager b;
         if ((b = botByBID(cmd.getBID())) != null) {
-            if (metaData.length == 3) {
+            clearDeadline(b);
+            if (cmd.getFieldCount() == 3) {
                 int gid = b.getGID();   // Find bot's current game.
                 GameManager g;
                 if ((g = gameByGID(gid)) != null) {
-                    if (g.processMove(metaData[2])) {
+                    if (g.processMove(cmd.getField(2))) {
                         if (!(g.isValidationMatch() & g.getMoveCount() > 5)) {
                             if (!(g.isDraw() | g.hasWon())) {
                                 if (g.isValidationMatch()) {
                                     g.makeValidMove();
                                 }
-                                sendQueue.add(new CmdPack(new Command("ACTION_REQUEST", g.getLastMove()), g.getTurn(), 5000));
+                                sendToBot(new Command("ACTION_REQUEST", g.getLastMove()), g.getTurn(), 5000);
                             } else {
                                 String test = g.logGame(); // apparently I was having difficulty with this in the past.(?)
                                 sendQueue.add(new CmdPack(new Command("EXECUTE_PROCEDURE", test)));
@@ -299,13 +569,13 @@ public class GameServer {
                                 sendQueue.add(new CmdPack(new Command("GAME_REPORT", g.formGameReportCmd(g.getBID2())), g.getBID2()));
                                 setIdle(g.getBID1());
                                 setIdle(g.getBID2());
-                                games.remove(g);
+                                games.remove(g.getGID());
                             }
                         } else {
                             //Validation Match/Protocol test has concluded
                             sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "Protocol Test Passed!"), g.getBID1()));
                             setIdle(g.getBID1());
-                            games.remove(g);
+                            games.remove(g.getGID());
                         }
                     } else {
                         //Bot has made an invalid move
@@ -331,7 +601,7 @@ public class GameServer {
     private void challengeEvent() {
         //Disconnect Inactive Humans
         List<BotManager> toRemove = new ArrayList<BotManager>();
-        for (BotManager b : bots) {
+        for (BotManager b : bots.values()) {
             if (b.getBID() < 0 & !activeQueue.contains(b.getBID())) {
                 toRemove.add(b);
             }
@@ -344,7 +614,7 @@ public class GameServer {
         List<BotManager> list = new ArrayList<BotManager>();
         String status;
         logger.info("==================");
-        for (BotManager b : bots) {
+        for (BotManager b : bots.values()) {
             //For now, just show bot status'
             if (b.getBID() > 0) {
                 if (b.isBusy()) {
@@ -360,13 +630,13 @@ public class GameServer {
             Collections.shuffle(list);
             while (list.size() >= 2) {
                 GameManager g = new GameManager(list.get(0).getBID(), list.get(1).getBID());
-                list.get(0).setGID(g.getGID());
+                bots.setGame(list.get(0), g.getGID());
                 list.get(0).setBusy(true);
-                list.get(1).setGID(g.getGID());
+                bots.setGame(list.get(1), g.getGID());
                 list.get(1).setBusy(true);
-                games.add(g);
-                sendQueue.add(new CmdPack(new Command("GAME_INITIALIZE", g.formGameInitializeCmd()), list.get(0).getBID(), 5000));
-                sendQueue.add(new CmdPack(new Command("GAME_INITIALIZE", g.formGameInitializeCmd()), list.get(1).getBID(), 5000));
+                games.put(g.getGID(), g);
+                sendToBot(new Command("GAME_INITIALIZE", g.formGameInitializeCmd()), list.get(0).getBID(), 5000);
+                sendToBot(new Command("GAME_INITIALIZE", g.formGameInitializeCmd()), list.get(1).getBID(), 5000);
                 list.remove(0);
                 list.remove(0);
                 logger.info("Game #" + g.getGID() + " has begun!");
@@ -379,10 +649,9 @@ public class GameServer {
     }
 
     private void setMode(Command cmd) {
-        String[] metaData = cmd.getMetaData().split(":");
-        if (!metaData.equals(null) && metaData.length == 3) {
-            int bid = Integer.parseInt(metaData[0]);
-            int mode = Integer.parseInt(metaData[2]);
+        if (cmd.getFieldCount() == 3) {
+            int bid = cmd.getBID();
+            int mode = Integer.parseInt(cmd.getField(2));
             String modeStr;
             BotManager b;
             if ((b = botByBID(bid)) != null) {
@@ -397,6 +666,53 @@ public class GameServer {
         }
     }
 
+    /*
+     * Server side move deadlines.  The switch enforces actionTime itself; the
+     * server arms its own deadline, with deadlineSlack of grace, on the shared
+     * TimerWheel whenever a bot is sent a command that requires a response.
+     * Any reply from the bot clears it.  If it fires, the TimerWheel queues a
+     * MOVE_TIMEOUT and the bot is disconnected by the game server.
+     */
+    private void armDeadline(int bid, long actionTime) {
+        BotManager b;
+        if (bid > 0 && actionTime > 0 && (b = botByBID(bid)) != null) {
+            clearDeadline(b);
+            b.setMoveTimer(timerWheel.schedule(() -> commandQueue.offer(new Command(CommandType.MOVE_TIMEOUT, Integer.toString(bid))),
+                    actionTime + deadlineSlack));
+        }
+    }
+
+    // Queue a command for a bot and arm its deadline if a response is required.
+    private void sendToBot(Command cmd, int bid, long actionTime) {
+        sendQueue.add(new CmdPack(cmd, bid, actionTime));
+        armDeadline(bid, actionTime);
+    }
+
+    private void clearDeadline(BotManager b) {
+        TimerWheel.Timeout t = b.getMoveTimer();
+        if (t != null) {
+            t.cancel();
+            b.setMoveTimer(null);
+        }
+    }
+
+    private void clearDeadline(int bid) {
+        BotManager b;
+        if ((b = botByBID(bid)) != null) {
+            clearDeadline(b);
+        }
+    }
+
+    // Ignore timeouts made stale by a reply or a newer request.
+    private void moveTimeout(Command cmd) {
+        BotManager b;
+        if ((b = botByBID(cmd.getBID())) != null && b.getMoveTimer() != null && b.getMoveTimer().isExpired()) {
+            b.setMoveTimer(null);
+            logger.warn("Bot " + b.getBID() + " failed to respond within its action time.");
+            disconnectionByGameServer(b, "Bot failed to respond within its action time.");
+        }
+    }
+
     // =======UTILITIES=======
     private void disconnectionByGameServer(BotManager b, String reason) {
         int gid = b.getGID();
@@ -418,6 +734,7 @@ public class GameServer {
 
     //All disconnections coming from the switch
     private void disconnect(BotManager b) {
+        clearDeadline(b);
         if (b.isBusy()) {
             GameManager g;
             if ((g = gameByGID(b.getGID())) != null) {
@@ -429,7 +746,9 @@ public class GameServer {
                 }
                 sendQueue.add(new CmdPack(new Command("SERVER_MESSAGE", "Opponent disconnected or made an invalid move!"), g.getOpp()));
                 setIdle(g.getOpp());
-                games.remove(g);
+                clearDeadline(g.getBID1());
+                clearDeadline(g.getBID2());
+                games.remove(g.getGID());
             }
         }
         cleanOutQueue(b);
@@ -438,17 +757,9 @@ public class GameServer {
     }
 
     //Remove any extraneous messages from a disconnecting bot.
-    private synchronized void cleanOutQueue(BotManager b) {
+    private void cleanOutQueue(BotManager b) {
         if (b.getBID() < 0) {
-            List<OutputPack> remQueue = Collections.synchronizedList(new ArrayList<OutputPack>());
-            synchronized (outQueue) {
-                for (OutputPack p : outQueue) {
-                    if (p.getBID() == b.getBID()) {
-                        remQueue.add(p);
-                    }
-                }
-                outQueue.removeAll(remQueue);
-            }
+            outBoxes.drop(b.getBID());
         }
     }
 
@@ -467,30 +778,15 @@ public class GameServer {
     }
 
     private BotManager botByBID(int bid) {
-        for (BotManager b : bots) {
-            if (b.getBID() == bid) {
-                return b;
-            }
-        }
-        return null;
+        return bots.get(bid);
     }
 
     private BotManager botByGID(int gid) {
-        for (BotManager b : bots) {
-            if (b.getGID() == gid) {
-                return b;
-            }
-        }
-        return null;
+        return bots.byGame(gid);
     }
 
     private GameManager gameByGID(int gid) {
-        for (GameManager g : games) {
-            if (g.getGID() == gid) {
-                return g;
-            }
-        }
-        return null;
+        return games.get(gid);
     }
 
     private boolean isNumeric(String str) {
@@ -504,38 +800,148 @@ public class GameServer {
         return true;
     }
 
-    public class CommandProcessor extends Thread {
+    /*
+     * Handler table indexed by CommandType ordinal.  Command types are resolved
+     * into an opcode when the Command is created, so dispatching a command is a
+     * single array lookup instead of a chain of string comparisons.
+     */
+    private interface CommandHandler {
+        void handle(Command cmd);
+    }
+
+    private final CommandHandler[] handlers = new CommandHandler[CommandType.values().length];
+
+    private void registerHandlers() {
+        handlers[CommandType.LOGIN_INFORM.ordinal()]          = cmd -> login(cmd);
+        handlers[CommandType.GAME_INITIALIZE.ordinal()]       = cmd -> setReadyStatus(cmd);
+        handlers[CommandType.ACTION_REPLY.ordinal()]          = cmd -> actionReply(cmd);
+        handlers[CommandType.DISCONNECT_BOT_REMOTE.ordinal()] = cmd -> disconnectionBySwitch(cmd);
+        handlers[CommandType.CHALLENGE.ordinal()]             = cmd -> challengeEvent();
+        handlers[CommandType.SERVER_MESSAGE.ordinal()]        = cmd -> switchMessage(cmd);
+        handlers[CommandType.WEB_START_GAME.ordinal()]        = cmd -> webStartGame(cmd);
+        handlers[CommandType.SET_MODE.ordinal()]              = cmd -> setMode(cmd);
+        handlers[CommandType.CLEAN_OUTPUT.ordinal()]          = cmd -> cleanOutput();
+        handlers[CommandType.MOVE_TIMEOUT.ordinal()]          = cmd -> moveTimeout(cmd);
+    }
+
+    private void dispatch(Command cmd) {
+        CommandHandler h = handlers[cmd.getOpcode().ordinal()];
+        if (h != null) {
+            String type = cmd.getOpcode().name();
+            latency.recordSince(LatencyStats.Stage.QUEUE_WAIT, type, cmd.getCreatedAt());
+            long start = System.nanoTime();
+            try {
+                h.handle(cmd);
+            } finally {
+                latency.recordSince(LatencyStats.Stage.HANDLER, type, start);
+            }
+        } else {
+            logger.warn("Unrecognized Command Forwarded From Server: " + cmd.getCommandType());
+        }
+    }
+
+    /*
+     * Sharded execution.  A game scoped command is routed to shard
+     * (gid % shards.length).  A bot only changes games inside a global command,
+     * and global commands wait for every shard to drain first, so a bot's
+     * commands can never be in flight on two shards at once.
+     */
+    private CommandShard[] shards;                                  // null when running a single CommandProcessor
+    private final AtomicInteger shardBacklog = new AtomicInteger();  // Commands handed to shards but not yet finished
+    private final Object shardIdle = new Object();
+
+    private void startShards() {
+        if (processorShards > 1) {
+            shards = new CommandShard[processorShards];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new CommandShard();
+                new Thread(shards[i], "CommandShard-" + i).start();
+            }
+            logger.info("CommandProcessor running " + shards.length + " shards.");
+        }
+    }
+
+    // Returns the gid owning this command or -1 if it must run globally.
+    private int shardKey(Command cmd) {
+        switch (cmd.getOpcode()) {
+            case GAME_INITIALIZE:
+            case MOVE_TIMEOUT:
+            case ACTION_REPLY:
+                BotManager b;
+                if ((b = botByBID(cmd.getBID())) != null && b.getGID() > 0) {
+                    return b.getGID();
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    private void execute(Command cmd) throws InterruptedException {
+        if (shards == null) {
+            dispatch(cmd);
+            return;
+        }
+        int gid = shardKey(cmd);
+        if (gid < 0) {
+            awaitShards();
+            dispatch(cmd);
+        } else {
+            shardBacklog.incrementAndGet();
+            shards[gid % shards.length].queue.add(cmd);
+        }
+    }
+
+    // Disconnect every bot whose messages were dropped under the DISCONNECT
+    // overload policy.  This touches global state, so the shards are drained first.
+    private void disconnectOffenders() throws InterruptedException {
+        for (OverloadGuard guard : guards) {
+            if (guard.getPolicy() != OverloadGuard.Policy.DISCONNECT) {
+                continue;
+            }
+            for (int bid : guard.drainOffenders()) {
+                if (shards != null) {
+                    awaitShards();
+                }
+                BotManager b = botByBID(bid);
+                if (b != null) {
+                    logger.warn("Disconnecting " + bid + ": " + guard.summary());
+                    disconnectionByGameServer(b, "Game server overloaded.");
+                }
+            }
+        }
+    }
+
+    private void awaitShards() throws InterruptedException {
+        synchronized (shardIdle) {
+            while (shardBacklog.get() > 0) {
+                shardIdle.wait();
+            }
+        }
+    }
 
-        private Command cmd;
+    private void shardDone() {
+        if (shardBacklog.decrementAndGet() == 0) {
+            synchronized (shardIdle) {
+                shardIdle.notifyAll();
+            }
+        }
+    }
+
+    public class CommandShard extends Thread {
+
+        private final BlockingQueue<Command> queue = new LinkedBlockingQueue<Command>();
 
         @Override
         public void run() {
             while (true) {
                 try {
-                    cmd = commandQueue.take();
-                    //System.out.println("FROM SW => " +cmd.getCommandType()+"<<"+cmd.getMetaData());
-                    if (cmd.getCommandType().equals("LOGIN_INFORM")) {
-                        login(cmd);
-                    } else if (cmd.getCommandType().equals("GAME_INITIALIZE")) {
-                        setReadyStatus(cmd);
-                    } else if (cmd.getCommandType().equals("ACTION_REPLY")) {
-                        actionReply(cmd);
-                    } else if (cmd.getCommandType().equals("DISCONNECT_BOT_REMOTE")) {
-                        disconnectionBySwitch(cmd);
-                    } else if (cmd.getCommandType().equals("CHALLENGE")) {
-                        challengeEvent();
-                    } else if (cmd.getCommandType().equals("SERVER_MESSAGE")) {
-                        switchMessage(cmd);
-                    } else if (cmd.getCommandType().equals("WEB_START_GAME")) {
-                        webStartGame(cmd);
-                    } else if (cmd.getCommandType().equals("SET_MODE")) {
-                        setMode(cmd);
-                    } else if (cmd.getCommandType().equals("CLEAN_OUTPUT")) {
-                        cleanOutput();
-                    } else {
-                        logger.warn("Unrecognized Command Forwarded From Server: " + cmd.getCommandType());
+                    Command cmd = queue.take();
+                    try {
+                        dispatch(cmd);
+                    } finally {
+                        shardDone();
                     }
-
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 } catch (NullPointerException e) {
@@ -544,4 +950,79 @@ public class GameServer {
             }
         }
     }
-}
\ No newline at end of file
+
+    // Timer driven commands.  Duplicates queued while the processor was behind
+    // are collapsed into a single execution at the end of the batch.
+    private boolean isHousekeeping(CommandType t) {
+        return t == CommandType.CHALLENGE || t == CommandType.CLEAN_OUTPUT;
+    }
+
+    /*
+     * The CommandProcessor drains the commandQueue in batches of up to
+     * commandBatch commands.  Housekeeping commands are deferred to the end of
+     * the batch and run once each, however many copies were queued.
+     */
+    public class CommandProcessor extends Thread {
+
+        private final List<Command> batch = new ArrayList<Command>(commandBatch);
+        private final List<Command> housekeeping = new ArrayList<Command>();
+        private final boolean[] seen = new boolean[CommandType.values().length];
+        private final BatchStats stats = new BatchStats(commandBatch);
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    batch.add(commandQueue.take());
+                    commandQueue.drainTo(batch, commandBatch - 1);
+                    disconnectOffenders();
+                    int coalesced = 0;
+                    for (Command cmd : batch) {
+                        CommandType t = cmd.getOpcode();
+                        if (isHousekeeping(t)) {
+                            if (seen[t.ordinal()]) {
+                                coalesced++;
+                            } else {
+                                seen[t.ordinal()] = true;
+                                housekeeping.add(cmd);
+                            }
+                            continue;
+                        }
+                        process(cmd);
+                    }
+                    stats.record(batch.size(), coalesced);
+                    for (Command cmd : housekeeping) {
+                        process(cmd);
+                        if (cmd.getOpcode() == CommandType.CHALLENGE) {
+                            logger.info(stats.summary());
+                            logger.info(latency.dump());
+                            if (FrameCompressor.offered()) {
+                                logger.info(FrameCompressor.summary());
+                            }
+                            for (OverloadGuard guard : guards) {
+                                logger.info(guard.summary());
+                            }
+                            stats.reset();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    batch.clear();
+                    for (Command cmd : housekeeping) {
+                        seen[cmd.getOpcode().ordinal()] = false;    //Also when the batch was cut short
+                    }
+                    housekeeping.clear();
+                }
+            }
+        }
+
+        private void process(Command cmd) throws InterruptedException {
+            try {
+                execute(cmd);
+            } catch (NullPointerException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * LatencyStats keeps one LatencyHistogram per (stage, command type) for the
+ * three stages a command passes through in the game server:
+ *
+ *   QUEUE_WAIT - from the Command entering the commandQueue until its handler
+ *                starts (includes any wait in a CommandShard queue).
+ *   HANDLER    - time spent in the command's handler.
+ *   SEND_WAIT  - from a CmdPack entering the sendQueue until the
+ *                CommandSender picks it up.
+ *
+ * Inbound commands are keyed by opcode, so unknown wire types share the
+ * UNKNOWN histogram; outbound packs are keyed by their (server generated)
+ * command type.  There is a single process wide instance, registered with
+ * the platform MBeanServer, and its dump() is logged on every CHALLENGE.
+ */
+
+package cw_generic;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import org.apache.log4j.Logger;
+
+public class LatencyStats implements LatencyStatsMBean {
+
+    public enum Stage { QUEUE_WAIT, HANDLER, SEND_WAIT }
+
+    private static final LatencyStats global = new LatencyStats();
+
+    private final Map<Stage, ConcurrentMap<String, LatencyHistogram>> stages = new EnumMap<Stage, ConcurrentMap<String, LatencyHistogram>>(Stage.class);
+
+    private LatencyStats() {
+        for (Stage s : Stage.values()) {
+            stages.put(s, new ConcurrentHashMap<String, LatencyHistogram>());
+        }
+    }
+
+    public static LatencyStats global() {
+        return global;
+    }
+
+    // Expose the statistics over JMX.  Failure only costs the JMX view.
+    public void register(Logger logger) {
+        try {
+            ObjectName name = new ObjectName("cw_generic:type=LatencyStats");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not register LatencyStats MBean: " + e);
+        }
+    }
+
+    // Record a duration, given the System.nanoTime() at which it started.
+    public void recordSince(Stage stage, String type, long startNanos) {
+        histogram(stage, type).record(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram histogram(Stage stage, String type) {
+        ConcurrentMap<String, LatencyHistogram> m = stages.get(stage);
+        LatencyHistogram h = m.get(type);
+        if (h == null) {
+            h = m.computeIfAbsent(type, k -> new LatencyHistogram());
+        }
+        return h;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder("Latency (us)       type                   count        p50        p99       p999        max");
+        for (Stage s : Stage.values()) {
+            for (Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(stages.get(s)).entrySet()) {
+                LatencyHistogram h = e.getValue();
+                sb.append(String.format("%n%-18s %-20s %7d %10.1f %10.1f %10.1f %10.1f", s, e.getKey(), h.getCount(),
+                        micros(h.getPercentile(50)), micros(h.getPercentile(99)), micros(h.getPercentile(99.9)), micros(h.getMax())));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (ConcurrentMap<String, LatencyHistogram> m : stages.values()) {
+            for (LatencyHistogram h : m.values()) {
+                h.reset();
+            }
+        }
+    }
+
+    @Override
+    public long getCount(String stage, String type) {
+        LatencyHistogram h = stages.get(Stage.valueOf(stage)).get(type);
+        return (h == null) ? 0 : h.getCount();
+    }
+
+    @Override
+    public double getPercentileMicros(String stage, String type, double percentile) {
+        LatencyHistogram h = stages.get(Stage.valueOf(stage)).get(type);
+        return (h == null) ? 0 : micros(h.getPercentile(percentile));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * JMX view of the game server's LatencyStats (ObjectName
+ * cw_generic:type=LatencyStats).  Stages are QUEUE_WAIT, HANDLER and
+ * SEND_WAIT; types are command type names such as ACTION_REPLY.
+ */
+
+package cw_generic;
+
+public interface LatencyStatsMBean {
+
+    // Plain-text table of every histogram, the same text that is logged on each CHALLENGE.
+    public String dump();
+
+    public void reset();
+
+    public long getCount(String stage, String type);
+
+    public double getPercentileMicros(String stage, String type, double percentile);
+}
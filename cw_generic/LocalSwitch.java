@@ -0,0 +1,423 @@
+/*
+ * LocalSwitch is a minimal stand-in for the code-wars switch, for running a
+ * game server locally without the real switch.  It accepts game server
+ * connections, answers REGISTER (accepting the BINARY1 offer unless started
+ * in text mode, and compression unless started in text or binary mode, see
+ * WireProtocol and FrameCompressor), logs every frame the game server sends
+ * and counts frames and bytes per connection in each direction.  MULTICAST1
+ * is always accepted and a multicast frame is handed on once per target.
+ * ACK1 is always accepted: data frames are acknowledged after every read, and frames
+ * replayed after a reconnect that were already received are counted as
+ * duplicates instead of logged.  The last sequence number received is kept
+ * per stream (see WireProtocol), across connections.
+ *
+ * Lines typed on stdin ("TYPE<<bid:metadata") are sent to every connected
+ * game server in that connection's protocol, as if a bot had sent them.
+ * "stats" prints the counters; "drop" closes every connection, to try out
+ * reconnects; "mute" stops (and starts again) everything sent to the game
+ * servers, to try out their read timeout on a switch that has hung.
+ *
+ * SERVER_PING from a game server is answered with SERVER_PING, so an idle
+ * game server hears from the switch within a heartbeat, and its read timeout
+ * only fires when the switch has hung.
+ *
+ * Subclasses (see BotSwarm) take the place of the bots by overriding
+ * registered() and frameReceived() and answering through Connection.send().
+ *
+ *     java cw_generic.LocalSwitch [port] [deflate|binary|text]
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class LocalSwitch {
+    private final int port;
+    private final boolean allowBinary;
+    private final boolean allowCompression;
+    protected final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    private final Map<String, Long> delivered = new ConcurrentHashMap<String, Long>();
+    private volatile boolean muted;
+
+    public LocalSwitch(int port, boolean allowBinary, boolean allowCompression) {
+        this.port = port;
+        this.allowBinary = allowBinary;
+        this.allowCompression = allowBinary && allowCompression;
+    }
+
+    public static void main(String args[]) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 3000;
+        String mode = (args.length > 1) ? args[1] : "deflate";
+        LocalSwitch sw = new LocalSwitch(port, !"text".equalsIgnoreCase(mode), "deflate".equalsIgnoreCase(mode));
+        sw.start();
+        sw.readConsole(new BufferedReader(new InputStreamReader(System.in, "UTF-8")));
+    }
+
+    public void start() throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        System.out.println("LocalSwitch listening on " + port + (allowBinary ? " (text, BINARY1" + (allowCompression ? ", " + FrameCompressor.feature() : "") + ")" : " (text only)"));
+        Thread acceptor = new Thread("LocalSwitch-accept") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Connection c = new Connection(server.accept());
+                        connections.add(c);
+                        c.start();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void readConsole(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("stats")) {
+                for (Connection c : connections) {
+                    System.out.println(c.stats());
+                }
+                continue;
+            }
+            if (line.equals("drop")) {
+                for (Connection c : connections) {
+                    c.drop();
+                }
+                continue;
+            }
+            if (line.equals("mute")) {
+                muted = !muted;
+                System.out.println(muted ? "Muted" : "Unmuted");
+                continue;
+            }
+            int sep = line.indexOf("<<");
+            if (sep < 0) {
+                System.out.println("Expected TYPE<<metadata, stats, drop or mute");
+                continue;
+            }
+            for (Connection c : connections) {
+                c.send(line.substring(0, sep), line.substring(sep + 2));
+            }
+        }
+    }
+
+    // A game server connection has registered (and its features are settled).
+    protected void registered(Connection c) {
+    }
+
+    // A data frame from the game server.  bid is the bot the pack is routed
+    // to, or -1 for packs meant for the switch itself; payload is the
+    // metadata without the routing prefix.
+    protected void frameReceived(Connection c, String type, int bid, String payload) {
+        System.out.println(c.getServerName() + " > " + type + (bid >= 0 ? " bid=" + bid : "") + " " + payload);
+    }
+
+    // One game server connection.
+    protected class Connection extends Thread implements FrameDecoder.Handler {
+        private final SocketChannel channel;
+        private final FrameDecoder decoder = new FrameDecoder(1 << 16);
+        private final OutputStream out;
+        private final byte[] header = new byte[WireProtocol.HEADER];
+        private String name = "?";
+        private boolean binaryOut;
+        private FrameCompressor deflater;     // compresses what we send
+        private FrameCompressor inflater;     // decompresses what the game server sends
+        private long framesIn, bytesIn, framesOut, bytesOut;
+        private boolean acks;                 // ACK1 accepted
+        private String stream = "";           // the game server's numbering, from RESUME
+        private long nextSeq;                 // number of the next data frame
+        private long acked;                   // last number acknowledged
+        private long duplicates;
+        private final OutputStream counting = new CountingStream();
+
+        public Connection(SocketChannel channel) throws IOException {
+            super("LocalSwitch-" + channel.getRemoteAddress());
+            this.channel = channel;
+            channel.socket().setTcpNoDelay(true);
+            this.out = new BufferedOutputStream(channel.socket().getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            try {
+                int n;
+                while ((n = channel.read(decoder.buffer())) >= 0) {
+                    synchronized (this) {
+                        bytesIn += n;
+                    }
+                    decoder.decode(this);
+                    if (acks) {
+                        acknowledge();
+                    }
+                }
+                System.out.println(name + " disconnected. " + stats());
+            } catch (IOException e) {
+                System.out.println(name + " disconnected: " + e + ". " + stats());
+            } finally {
+                connections.remove(this);
+            }
+        }
+
+        @Override
+        public void frame(ByteBuffer buf, int typeStart, int typeEnd, int metaStart, int metaEnd) {
+            String type = text(buf, typeStart, typeEnd);
+            String meta = (metaStart < 0) ? "" : text(buf, metaStart, metaEnd);
+            synchronized (this) {
+                framesIn++;
+            }
+            if (type.equals("REGISTER")) {
+                register(meta);
+            } else if (type.equals(WireProtocol.PROTOCOL)) {
+                // The game server's confirmation: with BINARY1 its frames are binary from here on.
+                decoder.setBinary(WireProtocol.hasFeature(meta, WireProtocol.BINARY));
+                System.out.println(name + " now sending " + meta);
+            } else if (isNew(type, meta)) {
+                received(type, meta);
+            }
+        }
+
+        // Text packs routed to bots start with bid[,bid...]:actionTime:
+        private void received(String type, String meta) {
+            int c1 = meta.indexOf(':');
+            int c2 = (c1 < 0) ? -1 : meta.indexOf(':', c1 + 1);
+            if (c2 > 0) {
+                try {
+                    String[] targets = meta.substring(0, c1).split(",");
+                    int[] bids = new int[targets.length];
+                    for (int i = 0; i < bids.length; i++) {
+                        bids[i] = Integer.parseInt(targets[i]);
+                    }
+                    Long.parseLong(meta.substring(c1 + 1, c2));
+                    String payload = meta.substring(c2 + 1);
+                    for (int bid : bids) {
+                        frameReceived(this, type, bid, payload);
+                    }
+                    return;
+                } catch (NumberFormatException e) {
+                    // Not routed.
+                }
+            }
+            frameReceived(this, type, -1, meta);
+        }
+
+        @Override
+        public void binaryFrame(ByteBuffer buf, int opcode, int bid, int actionTime, int typeStart, int typeEnd, int payloadStart, int payloadEnd) {
+            String type = (typeStart >= 0) ? text(buf, typeStart, typeEnd) : WireProtocol.typeOf(opcode);
+            synchronized (this) {
+                framesIn++;
+            }
+            int[] targets = null;
+            if ((opcode & WireProtocol.MULTICAST) != 0) {
+                if (bid < 1 || (long) payloadStart + 4L * bid > payloadEnd) {
+                    System.out.println(name + " sent a multicast " + type + " with " + bid + " targets in " + (payloadEnd - payloadStart) + " bytes");
+                    return;
+                }
+                targets = new int[bid];
+                for (int i = 0; i < bid; i++) {
+                    targets[i] = buf.getInt(payloadStart);
+                    payloadStart += 4;
+                }
+            }
+            String payload;
+            if ((opcode & WireProtocol.COMPRESSED) == 0) {
+                payload = text(buf, payloadStart, payloadEnd);
+            } else {
+                try {
+                    payload = new String(inflater.decompress(buf, payloadStart, payloadEnd), StandardCharsets.UTF_8);
+                } catch (Exception e) {
+                    payload = "undecodable compressed payload: " + e;
+                }
+            }
+            if (!isNew(type, payload)) {
+                return;
+            }
+            if (targets == null) {
+                frameReceived(this, type, (bid > 0) ? bid : -1, payload);
+                return;
+            }
+            for (int t : targets) {
+                frameReceived(this, type, t, payload);
+            }
+        }
+
+        // Numbers the game server's data frames if ACK1 is on; false for a
+        // replayed frame that was already received, or a ping (answered here).
+        private boolean isNew(String type, String meta) {
+            if (type.equals("SERVER_PING")) {
+                send("SERVER_PING", "null");
+                return false;
+            }
+            if (!acks) {
+                return true;
+            }
+            if (type.equals(WireProtocol.RESUME)) {
+                int colon = meta.indexOf(':');
+                stream = meta.substring(0, colon);
+                nextSeq = Long.parseLong(meta.substring(colon + 1).trim());
+                System.out.println(name + " resuming stream " + stream + " at " + nextSeq);
+                return false;
+            }
+            if (WireProtocol.isControl(type)) {
+                return true;
+            }
+            long seq = nextSeq++;
+            if (seq <= delivered.getOrDefault(stream, 0L)) {
+                synchronized (this) {
+                    duplicates++;
+                }
+                return false;
+            }
+            delivered.put(stream, seq);
+            return true;
+        }
+
+        private void acknowledge() {
+            if (muted) {
+                return;
+            }
+            long seq = delivered.getOrDefault(stream, 0L);
+            if (seq > acked) {
+                send(WireProtocol.ACK, Long.toString(seq));
+                acked = seq;
+            }
+        }
+
+        // REGISTER<<identity[:feature[,feature...]]
+        private void register(String meta) {
+            int colon = meta.lastIndexOf(':');
+            String offer = (colon < 0) ? "" : meta.substring(colon + 1);
+            boolean offersBinary = WireProtocol.hasFeature(offer, WireProtocol.BINARY);
+            boolean offersReplay = WireProtocol.hasFeature(offer, WireProtocol.REPLAY);
+            boolean offersMulticast = WireProtocol.hasFeature(offer, WireProtocol.MULTICAST_FEATURE);
+            boolean offered = offersBinary || offersReplay || offersMulticast;
+            name = offered ? meta.substring(0, colon) : meta;
+            System.out.println(name + " registered" + (offered ? ", offering " + offer : ""));
+            boolean binary = offersBinary && allowBinary;
+            boolean compress = binary && allowCompression && WireProtocol.hasFeature(offer, FrameCompressor.feature());
+            List<String> accepted = new ArrayList<String>();
+            if (binary) {
+                accepted.add(WireProtocol.BINARY);
+            }
+            if (compress) {
+                accepted.add(FrameCompressor.feature());
+            }
+            if (offersReplay) {
+                accepted.add(WireProtocol.REPLAY);
+            }
+            if (offersMulticast) {
+                accepted.add(WireProtocol.MULTICAST_FEATURE);
+            }
+            if (!accepted.isEmpty()) {
+                synchronized (this) {
+                    sendLine(WireProtocol.PROTOCOL + "<<" + String.join(",", accepted));
+                    binaryOut = binary;
+                    acks = offersReplay;
+                    if (compress) {
+                        deflater = new FrameCompressor();
+                        inflater = new FrameCompressor();
+                    }
+                }
+            }
+            registered(this);
+        }
+
+        public String getServerName() {
+            return name;
+        }
+
+        public void drop() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Send a command as if it came from a bot.  Metadata starts with the bid.
+        public synchronized void send(String type, String meta) {
+            if (muted) {
+                return;
+            }
+            try {
+                if (binaryOut) {
+                    int colon = meta.indexOf(':');
+                    int bid = -1;
+                    String payload = meta;
+                    if (colon > 0) {
+                        try {
+                            bid = Integer.parseInt(meta.substring(0, colon));
+                            payload = meta.substring(colon + 1);
+                        } catch (NumberFormatException e) {
+                            bid = -1;
+                        }
+                    }
+                    WireProtocol.writeBinary(counting, type, bid, 0, payload, header, deflater);
+                } else {
+                    counting.write((type + "<<" + meta + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                counting.flush();
+                framesOut++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private synchronized void sendLine(String line) {
+            if (muted) {
+                return;
+            }
+            try {
+                counting.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                counting.flush();
+                framesOut++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public synchronized String stats() {
+            return name + ": in " + framesIn + " frames / " + bytesIn + " bytes, out " + framesOut + " frames / "
+                    + bytesOut + " bytes" + (binaryOut ? " (" + WireProtocol.BINARY + (deflater != null ? ", compressed" : "") + ")" : " (text)")
+                    + (acks ? ", " + duplicates + " duplicates" : "");
+        }
+
+        // Counts bytes handed to the socket.
+        private class CountingStream extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut += len;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+        }
+    }
+
+    private static String text(ByteBuffer buf, int start, int end) {
+        byte[] b = new byte[end - start];
+        buf.get(start, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -1,7 +1,8 @@
 /*
- * The Output Cleaner thread injects a CLEAN_OUTPUT command which removes any
+ * The Output Cleaner injects a CLEAN_OUTPUT command which removes any
  * expired commands destined for the web interface via Thrift.  Rate is set by
- * the purgeInterval parameter.
+ * the purgeInterval parameter.  The ticks are driven by the shared TimerWheel
+ * rather than a dedicated thread.
  */
 package cw_generic;
 
@@ -13,10 +14,11 @@ import org.apache.log4j.Logger;
  *
  * @author KingOfSpades
  */
-public class OutputCleaner extends Thread {
+public class OutputCleaner implements Runnable {
     private Logger logger;
     public BlockingQueue<Command> commandQueue = new LinkedBlockingQueue();
     private long purgeInterval;
+    private final Command cmd = new Command(CommandType.CLEAN_OUTPUT, "null");
 
     public OutputCleaner(BlockingQueue<Command> commandQueue, Logger logger, long purgeInterval) {
         this.logger = logger;
@@ -24,21 +26,16 @@ public class OutputCleaner extends Thread {
         this.purgeInterval = purgeInterval;
     }
 
+    public TimerWheel.Timeout schedule(TimerWheel timerWheel) {
+        logger.info("OutputCleaner Started");
+        return timerWheel.schedulePeriodic(this, purgeInterval);
+    }
+
+    // Runs on the TimerWheel thread.  A tick dropped because the queue is full
+    // is harmless: the next CLEAN_OUTPUT covers it.
     @Override
     public void run() {
-        logger.info("OutputCleaner Started");
-        int x=0;
-        try {
-            this.setName("OutputCleaner");
-            Command cmd=new Command("CLEAN_OUTPUT", "null");
-            while(true){
-                Thread.sleep(purgeInterval);
-                commandQueue.add(cmd);
-            }
-        } catch (InterruptedException e) {
-            logger.fatal("ChallengeInterval Interrupted");
-            return;
-        }
+        cmd.stamp();
+        commandQueue.offer(cmd);
     }
 }
-
@@ -0,0 +1,217 @@
+/*
+ * OutputMailboxes holds the OutputPacks waiting for web players, one mailbox
+ * per (negative) bid, in place of a single list shared by every browser.  A
+ * fetchResponse() only locks and scans its own mailbox, so polls by different
+ * humans never wait for each other, and dropping a disconnected human's
+ * messages is one map removal.
+ *
+ * The total number of pending packs is bounded by the capacity given at
+ * construction (the outQueue guard's); offer() refuses packs beyond it.
+ * Packs in a mailbox are in arrival order, so its oldest pack is also the
+ * first to expire.  That makes the mailboxes their own expiry index: when a
+ * pack lands in an empty mailbox, a timeout for its expiry is armed on the
+ * shared TimerWheel, and emptying the mailbox (a fetch or a drop) cancels it.
+ * A timeout that fires only marks the bid; expired() hands the marked bids
+ * to the CLEAN_OUTPUT handler, so cleaning costs nothing for the mailboxes
+ * that are being fetched in time, however much output is pending.
+ *
+ * take() with a wait parks the caller until a pack arrives for its bid (the
+ * offering CommandSender wakes it directly), the mailbox is dropped, or the
+ * wait is over.  Mailboxes use a ReentrantLock rather than synchronized so
+ * that a parked virtual thread does not pin its carrier thread.
+ *
+ * A mailbox is created by the first pack for its bid, or by a poll that
+ * waits on it, and is retired as soon as it is empty with no poll waiting, or
+ * by drop().  So a poll for a bid that never gets output (a human who has
+ * already gone, or a made up bid) leaves nothing behind.  A pack offered
+ * while its mailbox is being retired goes to a fresh one.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class OutputMailboxes {
+    private final ConcurrentHashMap<Integer, Mailbox> boxes = new ConcurrentHashMap<Integer, Mailbox>();
+    private final Set<Integer> overdue = ConcurrentHashMap.newKeySet();    // bids whose expiry timeout fired
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final TimerWheel timerWheel;
+
+    public OutputMailboxes(int capacity, TimerWheel timerWheel) {
+        this.capacity = capacity;
+        this.timerWheel = timerWheel;
+    }
+
+    // Queue pack for its bid and wake a poll waiting for it; false if every
+    // mailbox together is full.
+    public boolean offer(OutputPack pack) {
+        while (true) {
+            Mailbox box = boxes.computeIfAbsent(pack.getBID(), Mailbox::new);
+            box.lock.lock();
+            try {
+                if (box.dropped) {
+                    continue;
+                }
+                if (size.get() >= capacity) {
+                    return false;
+                }
+                if (box.packs.isEmpty()) {
+                    box.armExpiry(pack.getEXP());
+                }
+                box.packs.addLast(pack);
+                size.incrementAndGet();
+                box.arrived.signalAll();
+                return true;
+            } finally {
+                box.lock.unlock();
+            }
+        }
+    }
+
+    // Remove and return every pack waiting for bid, oldest first.
+    public List<OutputPack> take(int bid) {
+        Mailbox box = boxes.get(bid);
+        if (box == null) {
+            return Collections.emptyList();
+        }
+        box.lock.lock();
+        try {
+            List<OutputPack> packs = box.drain();
+            box.retireIfIdle();
+            return packs;
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    // As take(bid), but if nothing is waiting, wait up to waitMillis for the
+    // first pack to arrive.
+    public List<OutputPack> take(int bid, long waitMillis) throws InterruptedException {
+        if (waitMillis <= 0) {
+            return take(bid);
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (true) {
+            Mailbox box = boxes.computeIfAbsent(bid, Mailbox::new);
+            box.lock.lock();
+            try {
+                if (box.dropped) {
+                    continue;       // retired just now, wait on a fresh one
+                }
+                List<OutputPack> packs = Collections.emptyList();
+                box.waiters++;
+                try {
+                    while (box.packs.isEmpty() && !box.dropped && remaining > 0) {
+                        remaining = box.arrived.awaitNanos(remaining);
+                    }
+                    packs = box.drain();
+                } finally {
+                    box.waiters--;
+                    box.retireIfIdle();
+                }
+                return packs;
+            } finally {
+                box.lock.unlock();
+            }
+        }
+    }
+
+    // Discard bid's mailbox and everything in it.  Waiting polls return empty.
+    public void drop(int bid) {
+        Mailbox box = boxes.remove(bid);
+        if (box == null) {
+            return;
+        }
+        box.lock.lock();
+        try {
+            box.dropped = true;
+            box.drain();
+            box.arrived.signalAll();
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    // Bids whose oldest waiting pack expired at or before now.  Only the
+    // mailboxes whose expiry timeout fired are looked at.
+    public List<Integer> expired(long now) {
+        List<Integer> bids = new ArrayList<Integer>();
+        for (Iterator<Integer> it = overdue.iterator(); it.hasNext();) {
+            int bid = it.next();
+            it.remove();
+            Mailbox box = boxes.get(bid);
+            if (box == null) {
+                continue;
+            }
+            box.lock.lock();
+            try {
+                OutputPack oldest = box.packs.peekFirst();
+                if (oldest == null) {
+                    continue;       // fetched just as the timeout fired
+                }
+                if (oldest.getEXP() <= now) {
+                    bids.add(bid);
+                } else if (box.expiry == null || box.expiry.isExpired()) {
+                    box.armExpiry(oldest.getEXP());     // the wheel fired a tick early
+                }
+            } finally {
+                box.lock.unlock();
+            }
+        }
+        return bids;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // Number of mailboxes in the map, empty ones included.
+    int mailboxes() {
+        return boxes.size();
+    }
+
+    // The methods below are called with lock held.
+    private class Mailbox {
+        private final int bid;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition arrived = lock.newCondition();
+        private final ArrayDeque<OutputPack> packs = new ArrayDeque<OutputPack>();
+        private TimerWheel.Timeout expiry;      // pending while packs is not empty
+        private boolean dropped;
+        private int waiters;                    // polls parked in take(bid, waitMillis)
+
+        Mailbox(int bid) {
+            this.bid = bid;
+        }
+
+        private void armExpiry(long exp) {
+            expiry = timerWheel.schedule(() -> overdue.add(bid), Math.max(0, exp - System.currentTimeMillis()));
+        }
+
+        // Take an empty mailbox nobody waits on out of the map.
+        private void retireIfIdle() {
+            if (packs.isEmpty() && waiters == 0 && !dropped) {
+                dropped = true;
+                boxes.remove(bid, this);
+            }
+        }
+
+        private List<OutputPack> drain() {
+            if (packs.isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (expiry != null) {
+                expiry.cancel();
+                expiry = null;
+            }
+            List<OutputPack> list = new ArrayList<OutputPack>(packs);
+            packs.clear();
+            size.addAndGet(-list.size());
+            return list;
+        }
+    }
+}
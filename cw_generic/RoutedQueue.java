@@ -0,0 +1,68 @@
+/*
+ * RoutedQueue is the producer side of a set of queues ("lanes"), one per
+ * switch connection.  Every element is added to lane (key % lanes), so all
+ * CmdPacks for one bot go down the same connection in the order they were
+ * queued, while different bots spread over the whole pool.
+ *
+ * It offers only the producer operations of a BlockingQueue (add, offer and
+ * put, with each lane's own capacity and overload behaviour); each consumer
+ * (a CommandSender) takes from its own lane().
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class RoutedQueue<E> {
+    private final List<BlockingQueue<E>> lanes;
+    private final ToIntFunction<E> key;
+
+    public RoutedQueue(List<BlockingQueue<E>> lanes, ToIntFunction<E> key) {
+        this.lanes = new ArrayList<BlockingQueue<E>>(lanes);
+        this.key = key;
+    }
+
+    public int lanes() {
+        return lanes.size();
+    }
+
+    public BlockingQueue<E> lane(int i) {
+        return lanes.get(i);
+    }
+
+    // Index of the lane an element with this key goes to.
+    public int laneOf(int key) {
+        return Math.floorMod(key, lanes.size());
+    }
+
+    private BlockingQueue<E> route(E e) {
+        return lanes.get(laneOf(key.applyAsInt(e)));
+    }
+
+    public boolean add(E e) {
+        return route(e).add(e);
+    }
+
+    public boolean offer(E e) {
+        return route(e).offer(e);
+    }
+
+    public void put(E e) throws InterruptedException {
+        route(e).put(e);
+    }
+
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return route(e).offer(e, timeout, unit);
+    }
+
+    // Elements waiting in every lane together.
+    public int size() {
+        int n = 0;
+        for (BlockingQueue<E> q : lanes) {
+            n += q.size();
+        }
+        return n;
+    }
+}
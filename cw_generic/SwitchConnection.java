@@ -0,0 +1,177 @@
+/*
+ * SwitchConnection is the non-blocking transport to the switch.  The
+ * connection is made with a blocking connect, then the SocketChannel is put in
+ * non-blocking mode and registered with two selectors:
+ *
+ *   - a read selector, used only by the SwitchListener thread in readLoop(),
+ *     which reads into a FrameDecoder's direct buffer and decodes frames in
+ *     place;
+ *   - a write selector, used only by writers that find the socket's send
+ *     buffer full (channel.write() returned 0).  They wait there until the
+ *     socket is writable again, so a partial write never drops bytes.
+ *
+ * The CommandSender writes whole batches as ByteBuffer arrays with one
+ * gathering write (see GatheringOutputStream).  getOutputStream() adapts
+ * write() to an OutputStream for simpler writers; its writes are copied
+ * through a direct staging buffer.  All writes are serialised on the
+ * connection.
+ *
+ * The connection remembers when it last read and last wrote anything, for
+ * the SwitchListener's idle heartbeats.
+ */
+
+package cw_generic;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class SwitchConnection {
+    private static final long WRITE_WAIT = 1000;    // ms between checks that the connection is still open
+
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(1 << 16);
+    private final InetAddress remoteIP;
+    private final int remotePort;
+    private final OutputStream out = new ConnectionOutputStream();
+    private volatile long lastRead = System.nanoTime();
+    private volatile long lastWrite = lastRead;
+
+    private SwitchConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        Socket s = channel.socket();
+        this.remoteIP = s.getInetAddress();
+        this.remotePort = s.getPort();
+        s.setTcpNoDelay(true);
+        channel.configureBlocking(false);
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+
+    public static SwitchConnection open(InetAddress ip, int port) throws IOException {
+        SocketChannel ch = SocketChannel.open(new InetSocketAddress(ip, port));
+        try {
+            return new SwitchConnection(ch);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    public InetAddress getRemoteIP() {
+        return remoteIP;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public long getReadIdleMillis() {
+        return (System.nanoTime() - lastRead) / 1000000;
+    }
+
+    public long getWriteIdleMillis() {
+        return (System.nanoTime() - lastWrite) / 1000000;
+    }
+
+    // Read and decode frames until the switch closes the connection or an I/O
+    // error occurs.  Never returns normally.
+    public void readLoop(FrameDecoder decoder, FrameDecoder.Handler handler) throws IOException {
+        while (true) {
+            readSelector.select();
+            readSelector.selectedKeys().clear();
+            int n;
+            while ((n = channel.read(decoder.buffer())) > 0) {
+                lastRead = System.nanoTime();
+                decoder.decode(handler);
+            }
+            if (n < 0) {
+                throw new EOFException("Switch closed the connection");
+            }
+        }
+    }
+
+    // Write all of buf, waiting for the socket to drain whenever it is full.
+    public synchronized void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.write(buf) == 0) {
+                awaitWritable();
+            }
+        }
+        lastWrite = System.nanoTime();
+    }
+
+    // Gathering write of bufs[offset, offset + length), waiting for the socket
+    // to drain whenever it is full.
+    public synchronized void write(ByteBuffer[] bufs, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (!bufs[offset].hasRemaining()) {
+                offset++;
+            } else if (channel.write(bufs, offset, end - offset) == 0) {
+                awaitWritable();
+            }
+        }
+        lastWrite = System.nanoTime();
+    }
+
+    private void awaitWritable() throws IOException {
+        writeSelector.select(WRITE_WAIT);
+        writeSelector.selectedKeys().clear();
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            readSelector.close();
+            writeSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Heap bytes are copied into the direct staging buffer before being
+    // written, which is what the JDK would do internally anyway.
+    private class ConnectionOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (SwitchConnection.this) {
+                while (len > 0) {
+                    int n = Math.min(len, staging.capacity());
+                    staging.clear();
+                    staging.put(b, off, n);
+                    staging.flip();
+                    SwitchConnection.this.write(staging);
+                    off += n;
+                    len -= n;
+                }
+            }
+        }
+    }
+}
@@ -6,83 +6,130 @@
  * any incomming commands from the switch.   A dedicated thread is spawned
  * to service the socket connection.  As commands are received, the thread
  * immediately puts them in the commandQueue.  If disconnected, the thread
- * attempts to reconnect periodically.
+ * attempts to reconnect with jittered exponential backoff, starting at
+ * -Dcw.reconnectMinMillis (default 250) and doubling up to
+ * -Dcw.reconnectMaxMillis (default 30000), so a short switch blip costs well
+ * under a second while a switch that stays down is not hammered.
+ *
+ * The link is a non-blocking SwitchConnection.  Incoming bytes are split into
+ * commands by a FrameDecoder without decoding whole lines into Strings first,
+ * and a known command type is resolved without allocating.  The metadata is
+ * still copied into a String for every command (and so is the name of an
+ * unknown type): the Command outlives the decoder's buffer, which the next
+ * read overwrites, and is handled on another thread.
+ *
+ * The listener owns the lane's ReplayBuffer, which outlives each connection
+ * and its CommandSender: packs the switch has not confirmed are written again
+ * after reconnecting (see CommandSender).  ACK frames from the switch release
+ * them and never reach the commandQueue.  A sender whose connection dropped
+ * keeps draining the sendQueue into the buffer, so nothing waits on the dead
+ * link; it is only stopped once the next connection is up.
 
- * The switch must send periodic “pings” to let the switch know that it is alive.
- * The Ping thread injects ping commands into the commandQueue which are
- * forwarded to the switch using standard means.
+ * The game server must send periodic “pings” to let the switch know that it is
+ * alive.  A Heartbeat on the shared TimerWheel queues SERVER_PING on the
+ * lane's sendQueue only when nothing has been written for
+ * -Dcw.heartbeatMillis (default 3000), or nothing has been read for that
+ * long, as a probe.  Anything read from the switch (commands, ACKs, its own
+ * SERVER_PING) proves the link is alive.
+ *
+ * Silence only means the switch is gone if the switch would otherwise have
+ * said something, so the read timeout is armed on a connection once the
+ * switch has answered one of our pings on it.  From then on, if nothing at
+ * all has been read for -Dcw.switchReadTimeoutMillis (default 10000; 0
+ * turns it off), and a ping of ours went out during that silence, the
+ * connection is dropped and re-established.  A switch that never answers
+ * pings is never timed out, as before.
  */
 
 package cw_generic;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
 import org.apache.log4j.Logger;
 
-public class SwitchListener extends Thread{
+public class SwitchListener extends Thread implements FrameDecoder.Handler {
     private Logger logger;
-    private Socket socket;
+    private SwitchConnection conn;
+    private FrameDecoder decoder;
+    private CommandSender cs;
+    private FrameCompressor inflater;     // set when the switch may send compressed frames
+    private byte[] scratch = new byte[256];
+    private final ReplayBuffer replay = new ReplayBuffer();
+    private static final long reconnectMin = Long.getLong("cw.reconnectMinMillis", 250);
+    private static final long reconnectMax = Long.getLong("cw.reconnectMaxMillis", 30000);
+    private static final long heartbeat = Long.getLong("cw.heartbeatMillis", 3000);
+    private static final long readTimeout = Long.getLong("cw.switchReadTimeoutMillis", 10000);
+    private volatile boolean pingAnswered;    // the switch answered a SERVER_PING on this connection
     private InetAddress serverIP;
     private int serverPort;       
-    private static PrintWriter out;
+    private TimerWheel timerWheel;
     public BlockingQueue<Command> commandQueue = new LinkedBlockingQueue();
     public BlockingQueue<CmdPack> sendQueue = new LinkedBlockingQueue();
-    public List<OutputPack> outQueue = Collections.synchronizedList(new ArrayList<OutputPack>());
+    private OutputMailboxes outBoxes;
+    private OverloadGuard outputGuard;
 
-    public SwitchListener(BlockingQueue<Command> commandQueue, BlockingQueue<CmdPack> sendQueue, List<OutputPack> outQueue, Logger logger){
+    public SwitchListener(BlockingQueue<Command> commandQueue, BlockingQueue<CmdPack> sendQueue, OutputMailboxes outBoxes, OverloadGuard outputGuard, TimerWheel timerWheel, Logger logger){
         try {
             this.serverPort = 3000;
             this.serverIP = InetAddress.getLocalHost();
             this.commandQueue = commandQueue;
             this.sendQueue = sendQueue;
-            this.outQueue = outQueue;
+            this.outBoxes = outBoxes;
+            this.outputGuard = outputGuard;
+            this.timerWheel = timerWheel;
             this.logger = logger;
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public Socket getSocket(){
-        return this.socket;
+    public SwitchConnection getConnection(){
+        return this.conn;
     }
 
     @Override
     public void run() {
 
+        long backoff = reconnectMin;
+        Thread heldThread = null;    //The last connection's sender, holding packs for replay
         while (true) {
             try {                
                 logger.info("Attempting to connect to SWITCH @ " + serverIP + ":" + serverPort);
-                this.socket = new Socket(serverIP, serverPort);
+                this.conn = SwitchConnection.open(serverIP, serverPort);
                 logger.info("Connected to SWITCH!");
-                CommandSender cs = new CommandSender(this.socket, this.sendQueue, this.outQueue);
-                cs.start();
-                //new Thread(new CommandSender(this.socket, this.sendQueue), "CommandSender").start();
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")), true);
-                PingThread pt = new PingThread(out);
-                pt.start();
-                out.println("REGISTER<<PUBLIC_CONNECT_FOUR:123456");
+                backoff = reconnectMin;
+                this.decoder = new FrameDecoder(1 << 16);
+                this.inflater = null;
+                this.pingAnswered = false;
+                if (heldThread != null) {
+                    this.cs.stopThread();
+                    heldThread.interrupt(); //CommandSender sits in Blocking IO.  Interrupt Required.
+                    awaitExit(heldThread);  //The next sender must not share the sendQueue or the ReplayBuffer with this one
+                    heldThread = null;
+                }
+                CommandSender cs = new CommandSender(this.conn, this.sendQueue, this.outBoxes, this.outputGuard, this.replay);
+                this.cs = cs;
+                cs.println("REGISTER<<" + WireProtocol.registerMetaData("PUBLIC_CONNECT_FOUR:123456"));   //Register before any queued command goes out
+                Thread csThread = ServerThreads.start(cs, "CommandSender");
+                TimerWheel.Timeout ping = timerWheel.schedulePeriodic(new Heartbeat(conn), Math.max(1, ((readTimeout > 0) ? Math.min(heartbeat, readTimeout) : heartbeat) / 4));
                 try {
-                    while (true) {
-                        String cmd = in.readLine();
-                        String[] parts = cmd.split("<<");
-                        String cmdType = parts[0];
-                        String metaData = parts[1];
-                        Command command = new Command(cmdType, socket.getInetAddress(), socket.getPort(), metaData);
-                        commandQueue.add(command);
-                    }
+                    conn.readLoop(decoder, this);
                 } catch (IOException e) {
                     e.printStackTrace();
                 } catch (Exception e) {
                     e.printStackTrace();
                 } finally {
+                    heldThread = csThread;  //Keeps draining the sendQueue until we reconnect
                     try {
-                        this.socket.close();
-                        pt.stopThread();
-                        cs.stopThread();
-                        cs.interrupt(); //CommandSender sits in Blocking IO.  Interrupt Required.
-                        logger.error("Disconnected From SWITCH.  Retrying in 5s...");
+                        this.conn.close();
+                        if (this.inflater != null) {
+                            this.inflater.end();
+                        }
+                        ping.cancel();
+                        logger.error("Disconnected From SWITCH." + (replay.size() > 0 ? "  " + replay.size() + " unacknowledged commands will be replayed." : ""));
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -91,7 +138,10 @@ public class SwitchListener extends Thread{
                 e.printStackTrace();
             }
             try {
-                Thread.sleep(5000);
+                long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                backoff = Math.min(backoff * 2, reconnectMax);
+                logger.info("Retrying SWITCH connection in " + delay + "ms");
+                Thread.sleep(delay);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -99,30 +149,172 @@ public class SwitchListener extends Thread{
 
     }
 
-    private class PingThread extends Thread {
+    // Called by the decoder for every line received from the switch.  Known
+    // command types are resolved from the bytes; the metadata (and the name
+    // of an unknown type) are copied into Strings.
+    @Override
+    public void frame(ByteBuffer buf, int typeStart, int typeEnd, int metaStart, int metaEnd) {
+        if (metaStart < 0) {
+            if (typeEnd > typeStart) {
+                logger.warn("Malformed command from SWITCH: " + text(buf, typeStart, typeEnd));
+            }
+            return;
+        }
+        CommandType t = CommandType.lookup(buf, typeStart, typeEnd);
+        String cmdType = (t == CommandType.UNKNOWN) ? text(buf, typeStart, typeEnd) : t.name();
+        String metaData = text(buf, metaStart, metaEnd);
+        if (t == CommandType.UNKNOWN && control(cmdType, metaData)) {
+            return;
+        }
+        Command command = (t == CommandType.UNKNOWN) ? new Command(cmdType, conn.getRemoteIP(), conn.getRemotePort(), metaData)
+                : new Command(t, conn.getRemoteIP(), conn.getRemotePort(), metaData);
+        commandQueue.add(command);
+    }
 
-        private PrintWriter out;
-        private boolean stop;
+    // A binary frame; the switch puts the sending bot's bid in the header.
+    @Override
+    public void binaryFrame(ByteBuffer buf, int opcode, int bid, int actionTime, int typeStart, int typeEnd, int payloadStart, int payloadEnd) {
+        CommandType t = (typeStart >= 0) ? CommandType.lookup(buf, typeStart, typeEnd) : CommandType.lookup(opcode);
+        String cmdType = (t != CommandType.UNKNOWN) ? t.name()
+                : (typeStart >= 0) ? text(buf, typeStart, typeEnd) : WireProtocol.typeOf(opcode);
+        if (cmdType == null) {
+            logger.warn("Unknown opcode from SWITCH: " + opcode);
+            return;
+        }
+        String payload;
+        if ((opcode & WireProtocol.COMPRESSED) == 0) {
+            payload = text(buf, payloadStart, payloadEnd);
+        } else if (inflater != null) {
+            try {
+                payload = new String(inflater.decompress(buf, payloadStart, payloadEnd), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                logger.warn("Dropped " + cmdType + " from SWITCH: " + e.getMessage());
+                return;
+            }
+        } else {
+            logger.warn("Dropped compressed " + cmdType + " from SWITCH: compression was not negotiated");
+            return;
+        }
+        if (t == CommandType.UNKNOWN && control(cmdType, payload)) {
+            return;
+        }
+        String metaData = (bid == -1) ? payload : bid + ":" + payload;
+        Command command = (t == CommandType.UNKNOWN) ? new Command(cmdType, conn.getRemoteIP(), conn.getRemotePort(), metaData)
+                : new Command(t, conn.getRemoteIP(), conn.getRemotePort(), metaData);
+        commandQueue.add(command);
+    }
 
-        public PingThread(PrintWriter out) {
-            this.out = out;
-            this.stop = false;
+    // Frames about the link itself, handled here rather than queued.
+    private boolean control(String cmdType, String metaData) {
+        if (WireProtocol.PROTOCOL.equals(cmdType)) {
+            acceptProtocol(metaData);
+        } else if (WireProtocol.ACK.equals(cmdType)) {
+            acknowledge(metaData);
+        } else if ("SERVER_PING".equals(cmdType)) {
+            pingAnswered = true;    // its silence means something from now on
+        } else {
+            return false;
         }
+        return true;
+    }
 
-        public void stopThread(){
-            this.stop=true;
+    // The switch answered our REGISTER offer.  If it accepted BINARY1,
+    // everything it sends after this line is binary; our own output switches
+    // after our confirmation line.
+    private void acceptProtocol(String protocol) {
+        boolean binary = WireProtocol.offerBinary() && WireProtocol.hasFeature(protocol, WireProtocol.BINARY);
+        boolean compress = binary && FrameCompressor.offered() && WireProtocol.hasFeature(protocol, FrameCompressor.feature());
+        boolean acks = WireProtocol.offerReplay() && WireProtocol.hasFeature(protocol, WireProtocol.REPLAY);
+        boolean multicast = WireProtocol.offerMulticast() && WireProtocol.hasFeature(protocol, WireProtocol.MULTICAST_FEATURE);
+        List<String> accepted = new ArrayList<String>();
+        if (binary) {
+            accepted.add(WireProtocol.BINARY);
+        }
+        if (compress) {
+            accepted.add(FrameCompressor.feature());
+        }
+        if (acks) {
+            accepted.add(WireProtocol.REPLAY);
+        }
+        if (multicast) {
+            accepted.add(WireProtocol.MULTICAST_FEATURE);
+        }
+        if (accepted.isEmpty()) {
+            logger.warn("SWITCH proposed unsupported protocol " + protocol);
+            cs.endNegotiation();
+            return;
+        }
+        decoder.setBinary(binary);
+        if (compress) {
+            inflater = new FrameCompressor();
+        }
+        try {
+            cs.enableProtocol(String.join(",", accepted));
+            logger.info("SWITCH link switched to " + protocol);
+        } catch (IOException e) {
+            e.printStackTrace();
+            conn.close();
+        }
+    }
+
+    // ACK<<seq: the switch has every data frame up to seq.
+    private void acknowledge(String seq) {
+        try {
+            replay.ack(Long.parseLong(seq.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn("Malformed ACK from SWITCH: " + seq);
+        }
+    }
+
+    private String text(ByteBuffer buf, int start, int end) {
+        int len = end - start;
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        buf.get(start, scratch, 0, len);
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    // Wait for the CommandSender thread to end, however long it takes.  The
+    // sendQueue is single-consumer, so its successor may only start after.
+    private void awaitExit(Thread csThread) {
+        boolean interrupted = false;
+        while (csThread.isAlive()) {
+            try {
+                csThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs on the TimerWheel several times per heartbeat period.  It only
+    // queues the ping, so a slow socket never holds up the TimerWheel.
+    private class Heartbeat implements Runnable {
+
+        private final SwitchConnection conn;
+        private long lastPing = System.nanoTime() - heartbeat * 1000000;
+
+        public Heartbeat(SwitchConnection conn) {
+            this.conn = conn;
         }
 
         @Override
         public void run() {
-            currentThread().setName("PingThread");
-            while (!stop) {
-                try {
-                    Thread.sleep(20 * 1000);
-                    out.println("SERVER_PING<<null");
-                } catch (InterruptedException e) {
-                    stop = true;
-                }
+            long now = System.nanoTime();
+            long readIdle = conn.getReadIdleMillis();
+            long sincePing = (now - lastPing) / 1000000;
+            if (readTimeout > 0 && pingAnswered && readIdle >= readTimeout && sincePing < readIdle) {
+                logger.error("Nothing from SWITCH for " + readIdle + "ms, not even after a ping.  Dropping the connection.");
+                conn.close();
+                return;
+            }
+            if ((conn.getWriteIdleMillis() >= heartbeat || readIdle >= heartbeat) && sincePing >= heartbeat) {
+                lastPing = now;
+                sendQueue.offer(new CmdPack(new Command("SERVER_PING", "null")));
             }
         }
     }
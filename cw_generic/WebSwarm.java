@@ -0,0 +1,132 @@
+/*
+ * WebSwarm load tests the Connect Four server's Thrift web interface the way
+ * a crowd of browsers uses it: every client keeps one connection open and
+ * polls fetchResponse() for its own human, pausing between polls.  It is the
+ * web counterpart of BotSwarm and is used to compare the Thrift server modes
+ * (-Dcw.thriftServer on the game server) and platform against virtual threads
+ * (-Dcw.virtualThreads).
+ *
+ * Every -Dcw.swarmReportMillis (default 5000) it prints the calls per second,
+ * the call latency (p50/p99/max) and the number of failed calls.  After the
+ * run it prints the totals over the whole run, without the first report
+ * period (warm up).
+ *
+ *     java cw_generic.WebSwarm [host] [port] [clients] [pollMillis] [seconds]
+ *
+ * Clients use plain TSocket by default, as the browser client does.  With
+ * -Dcw.webSwarmFramed=true they wrap it in TFramedTransport, which the
+ * nonblocking and hsha servers require.
+ */
+
+package cw_generic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import connectFourServer.gen.WebInterface;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+public class WebSwarm {
+    private static final long reportMillis = Long.getLong("cw.swarmReportMillis", 5000);
+    private static final boolean framed = Boolean.getBoolean("cw.webSwarmFramed");
+
+    private final String host;
+    private final int port;
+    private final long pollMillis;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean warm;
+    private volatile boolean running = true;
+
+    public WebSwarm(String host, int port, long pollMillis) {
+        this.host = host;
+        this.port = port;
+        this.pollMillis = pollMillis;
+    }
+
+    // One browser: connect, then poll for human bid until the run ends.
+    private void client(int bid) {
+        TTransport transport = null;
+        try {
+            transport = new TSocket(host, port);
+            if (framed) {
+                transport = new TFramedTransport(transport);
+            }
+            transport.open();
+            WebInterface.Client client = new WebInterface.Client(new TBinaryProtocol(transport));
+            // Spread the first polls over one poll period.
+            Thread.sleep(ThreadLocalRandom.current().nextLong(pollMillis + 1));
+            while (running) {
+                long start = System.nanoTime();
+                try {
+                    client.fetchResponse(bid);
+                } catch (TException e) {
+                    errors.incrementAndGet();
+                    return;
+                }
+                long nanos = System.nanoTime() - start;
+                latency.record(nanos);
+                if (warm) {
+                    total.record(nanos);
+                }
+                if (pollMillis > 0) {
+                    Thread.sleep(pollMillis);
+                }
+            }
+        } catch (TException e) {
+            errors.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (transport != null) {
+                transport.close();
+            }
+        }
+    }
+
+    private static String report(LatencyHistogram h, double seconds) {
+        return String.format("%.0f calls/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms", h.getCount() / seconds,
+                h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6);
+    }
+
+    public static void main(String args[]) throws Exception {
+        String host = (args.length > 0) ? args[0] : "127.0.0.1";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 7911;
+        int clients = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        long pollMillis = (args.length > 3) ? Long.parseLong(args[3]) : 100;
+        long seconds = (args.length > 4) ? Long.parseLong(args[4]) : 30;
+        WebSwarm swarm = new WebSwarm(host, port, pollMillis);
+        System.out.println("WebSwarm: " + clients + " clients polling " + host + ":" + port + " every " + pollMillis
+                + " ms for " + seconds + " s" + (framed ? " (framed)" : ""));
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1; i <= clients; i++) {
+            final int bid = i;
+            Thread t = new Thread(() -> swarm.client(bid), "WebSwarm-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        long end = System.currentTimeMillis() + seconds * 1000;
+        long warmStart = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(reportMillis, Math.max(1, end - System.currentTimeMillis())));
+            System.out.println(report(swarm.latency, reportMillis / 1000.0) + ", " + swarm.errors.get() + " errors");
+            swarm.latency.reset();
+            if (!swarm.warm) {
+                swarm.warm = true;
+                warmStart = System.currentTimeMillis();
+            }
+        }
+        swarm.running = false;
+        double measured = Math.max(1, System.currentTimeMillis() - warmStart) / 1000.0;
+        System.out.println("Total: " + report(swarm.total, measured) + ", " + swarm.errors.get() + " errors");
+        for (Thread t : threads) {
+            t.join(1000);
+        }
+    }
+}
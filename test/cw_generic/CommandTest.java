@@ -0,0 +1,84 @@
+package cw_generic;
+
+import static org.junit.Assert.*;
+
+import java.nio.*;
+import java.nio.charset.*;
+import org.junit.Test;
+
+public class CommandTest {
+    private static final String[] METADATA = {
+        "", ":", ":::", "a", "a:", "a::", ":a", "a::b", "12:3000:4", "12:3000:4::", "-3:0:x", "+5:+7:x",
+        "+:1", "-:1", "5a:1", "007:0042", "2147483647:1", "2147483648:1", "-2147483648:1",
+        "00000000000000000000012:1", "١٢:3", "1 :2", " 1:2", "9223372036854775807:9223372036854775807",
+        "1:9223372036854775808",
+    };
+
+    // getFieldCount() and getField() agree with metaData.split(":").
+    @Test
+    public void fieldsMatchSplit() {
+        for (String meta : METADATA) {
+            Command cmd = new Command("TEST", meta);
+            String[] parts = meta.split(":");
+            assertEquals("fields of \"" + meta + "\"", parts.length, cmd.getFieldCount());
+            for (int i = 0; i < parts.length; i++) {
+                assertEquals("field " + i + " of \"" + meta + "\"", parts[i], cmd.getField(i));
+                assertTrue(cmd.fieldEquals(i, parts[i]));
+            }
+            assertFalse(cmd.fieldEquals(parts.length, ""));
+        }
+    }
+
+    // getBID() and getActionTime() accept what Integer.parseInt() and
+    // Long.parseLong() accept, and are -1 otherwise.
+    @Test
+    public void numbersMatchParse() {
+        for (String meta : METADATA) {
+            Command cmd = new Command("TEST", meta);
+            String[] parts = meta.split(":", -1);
+            int bid;
+            try {
+                bid = Integer.parseInt(parts[0]);
+            } catch (NumberFormatException e) {
+                bid = -1;
+            }
+            long actionTime;
+            try {
+                actionTime = (parts.length > 1) ? Long.parseLong(parts[1]) : -1;
+            } catch (NumberFormatException e) {
+                actionTime = -1;
+            }
+            assertEquals("bid of \"" + meta + "\"", bid, cmd.getBID());
+            assertEquals("actionTime of \"" + meta + "\"", actionTime, cmd.getActionTime());
+        }
+    }
+
+    @Test
+    public void examples() {
+        assertEquals(5, new Command("TEST", "+5").getBID());
+        assertEquals(0, new Command("TEST", ":::").getFieldCount());
+        assertEquals(1, new Command("TEST", "").getFieldCount());
+        assertEquals(-1, new Command("TEST", "x:1").getBID());
+    }
+
+    // Every ingress resolves a type to the same CommandType.
+    @Test
+    public void typeResolution() {
+        assertEquals(CommandType.CHALLENGE, new Command("CHALLENGE", "null").getOpcode());
+        assertEquals("CHALLENGE", new Command(CommandType.CHALLENGE, "null").getCommandType());
+        assertEquals(CommandType.UNKNOWN, new Command("TEST", "").getOpcode());
+        Command cmd = new Command(CommandType.CHALLENGE, "null");
+        cmd.setCommandType("LOGIN_INFORM");
+        assertEquals(CommandType.LOGIN_INFORM, cmd.getOpcode());
+
+        ByteBuffer buf = ByteBuffer.wrap("xxGAME_INITIALIZE<<".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(CommandType.GAME_INITIALIZE, CommandType.lookup(buf, 2, 17));
+        assertEquals(CommandType.UNKNOWN, CommandType.lookup(buf, 2, 16));
+        assertEquals(CommandType.UNKNOWN, CommandType.lookup(buf, 0, 0));
+
+        int login = WireProtocol.opcodeOf("LOGIN_INFORM");
+        assertEquals(CommandType.LOGIN_INFORM, CommandType.lookup(login | WireProtocol.COMPRESSED));
+        assertEquals(CommandType.UNKNOWN, CommandType.lookup(WireProtocol.opcodeOf("SERVER_PING")));
+        assertEquals(CommandType.UNKNOWN, CommandType.lookup(0));
+    }
+}
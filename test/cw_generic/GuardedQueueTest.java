@@ -0,0 +1,57 @@
+package cw_generic;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+import org.junit.Test;
+
+public class GuardedQueueTest {
+
+    private static GuardedQueue<Integer> full(OverloadGuard.Policy policy) {
+        GuardedQueue<Integer> q = new GuardedQueue<Integer>(new ArrayBlockingQueue<Integer>(1),
+                new OverloadGuard("test", policy, 0), i -> i < 0, i -> i);
+        assertTrue(q.add(1));
+        return q;
+    }
+
+    // However long the consumer takes, a blocked message is never dropped.
+    @Test
+    public void blockedAddWaitsUntilDrained() throws Exception {
+        GuardedQueue<Integer> q = full(OverloadGuard.Policy.BLOCK);
+        ScheduledExecutorService consumer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            consumer.schedule(() -> q.poll(), 1500, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            assertTrue(q.add(-2));
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("waited " + waited + " ms", waited >= 1400);
+            assertEquals(1, q.getGuard().getBlocked());
+            assertEquals(Integer.valueOf(-2), q.poll());
+        } finally {
+            consumer.shutdown();
+        }
+    }
+
+    @Test
+    public void shedBlocksHighPriority() throws Exception {
+        GuardedQueue<Integer> q = full(OverloadGuard.Policy.SHED);
+        ScheduledExecutorService consumer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            consumer.schedule(() -> q.poll(), 50, TimeUnit.MILLISECONDS);
+            assertTrue(q.add(2));
+            assertEquals(1, q.getGuard().getBlocked());
+            assertEquals(0, q.getGuard().getShed());
+            assertEquals(Integer.valueOf(2), q.poll());
+        } finally {
+            consumer.shutdown();
+        }
+    }
+
+    @Test
+    public void shedDropsLowPriorityAtOnce() {
+        GuardedQueue<Integer> q = full(OverloadGuard.Policy.SHED);
+        assertFalse(q.add(-2));
+        assertEquals(1, q.getGuard().getShed());
+        assertEquals(0, q.getGuard().getBlocked());
+    }
+}
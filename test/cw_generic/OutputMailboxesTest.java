@@ -0,0 +1,75 @@
+package cw_generic;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+public class OutputMailboxesTest {
+    private final TimerWheel timerWheel = new TimerWheel(10, Logger.getLogger(OutputMailboxesTest.class));
+    private final OutputMailboxes boxes = new OutputMailboxes(100, timerWheel);
+
+    @After
+    public void stop() {
+        timerWheel.stopThread();
+    }
+
+    // A poll for a human who never gets output (already gone, or a made up
+    // bid) must not leave a mailbox behind.
+    @Test
+    public void waitingTakeLeavesNoMailbox() throws Exception {
+        for (int bid = -1; bid >= -50; bid--) {
+            assertTrue(boxes.take(bid, 1).isEmpty());
+        }
+        assertEquals(0, boxes.mailboxes());
+    }
+
+    @Test
+    public void waitingTakeWokenByOffer() throws Exception {
+        ExecutorService poller = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<OutputPack>> taken = poller.submit(() -> boxes.take(-7, 5000));
+            while (boxes.mailboxes() == 0) {
+                Thread.sleep(1);
+            }
+            assertTrue(boxes.offer(new OutputPack(-7, "GAME_START<<null")));
+            List<OutputPack> packs = taken.get(1, TimeUnit.SECONDS);
+            assertEquals(1, packs.size());
+            assertEquals("GAME_START<<null", packs.get(0).getCmd());
+            assertEquals(0, boxes.size());
+            assertEquals(0, boxes.mailboxes());
+        } finally {
+            poller.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dropWakesWaitingTake() throws Exception {
+        ExecutorService poller = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<OutputPack>> taken = poller.submit(() -> boxes.take(-7, 5000));
+            while (boxes.mailboxes() == 0) {
+                Thread.sleep(1);
+            }
+            boxes.drop(-7);
+            assertTrue(taken.get(1, TimeUnit.SECONDS).isEmpty());
+            assertEquals(0, boxes.mailboxes());
+        } finally {
+            poller.shutdownNow();
+        }
+    }
+
+    @Test
+    public void packsWaitUntilTaken() {
+        assertTrue(boxes.offer(new OutputPack(-3, "A<<1")));
+        assertTrue(boxes.offer(new OutputPack(-3, "B<<2")));
+        assertEquals(1, boxes.mailboxes());
+        List<OutputPack> packs = boxes.take(-3);
+        assertEquals(2, packs.size());
+        assertEquals("A<<1", packs.get(0).getCmd());
+        assertEquals(0, boxes.mailboxes());
+    }
+}